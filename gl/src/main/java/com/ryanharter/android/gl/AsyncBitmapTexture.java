@@ -0,0 +1,233 @@
+package com.ryanharter.android.gl;
+
+import android.graphics.Bitmap;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static android.opengl.GLES20.GL_CLAMP_TO_EDGE;
+import static android.opengl.GLES20.GL_LINEAR;
+import static android.opengl.GLES20.GL_RGBA;
+import static android.opengl.GLES20.GL_TEXTURE_2D;
+import static android.opengl.GLES20.GL_TEXTURE_MAG_FILTER;
+import static android.opengl.GLES20.GL_TEXTURE_MIN_FILTER;
+import static android.opengl.GLES20.GL_TEXTURE_WRAP_S;
+import static android.opengl.GLES20.GL_TEXTURE_WRAP_T;
+import static android.opengl.GLES20.GL_UNSIGNED_BYTE;
+import static android.opengl.GLES20.glFlush;
+import static android.opengl.GLES20.glGenerateMipmap;
+import static android.opengl.GLES20.glTexParameteri;
+import static android.opengl.GLES30.GL_ALREADY_SIGNALED;
+import static android.opengl.GLES30.GL_CONDITION_SATISFIED;
+import static android.opengl.GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE;
+import static android.opengl.GLES30.glClientWaitSync;
+import static android.opengl.GLES30.glDeleteSync;
+import static android.opengl.GLES30.glFenceSync;
+import static android.opengl.GLUtils.texImage2D;
+import static com.ryanharter.android.gl.GLES2Fix.glTexSubImage2DPBO;
+
+/**
+ * A {@link BitmapTexture} alternative that uploads its pixels incrementally instead of
+ * blocking the GL thread for the whole upload.
+ *
+ * On OpenGL ES 3.0 the bitmap is streamed in horizontal strips through an
+ * {@link UnpackBufferRing}, so the CPU copy, the DMA transfer and rendering overlap.
+ * Call {@link #upload()} once per frame on the GL thread until it returns true; the
+ * {@link Callback} is notified once the GPU has finished with the last strip and the
+ * texture is safe to sample.
+ *
+ * On OpenGL ES 2.0 the first call to {@link #upload()} falls back to a synchronous
+ * upload.
+ */
+public class AsyncBitmapTexture extends Texture {
+
+  public interface Callback {
+    void onTextureReady(AsyncBitmapTexture texture);
+  }
+
+  private static final int DEFAULT_SLOTS = 3;
+  private static final int DEFAULT_SLOT_SIZE = 4 * 1024 * 1024;
+
+  private final int width, height;
+  private final boolean mipmap;
+  private final Callback callback;
+
+  private Bitmap bitmap;
+  private UnpackBufferRing ring;
+  private boolean ownsRing;
+  private boolean started;
+  private int[] row;
+
+  private int nextRow;
+  private long fence;
+  private boolean ready;
+
+  public AsyncBitmapTexture(Bitmap bitmap, boolean mipmap, Callback callback) {
+    this(bitmap, mipmap, null, callback);
+  }
+
+  /**
+   * Creates a texture that will be uploaded through <code>ring</code>.  Sharing a ring
+   * between textures bounds the amount of memory used for staging, at the cost of
+   * uploading one texture after the other.
+   *
+   * @param ring The ring to upload through, or null to create one for this texture.
+   */
+  public AsyncBitmapTexture(Bitmap bitmap, boolean mipmap, UnpackBufferRing ring,
+      Callback callback) {
+    super();
+    if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+      bitmap = bitmap.copy(Bitmap.Config.ARGB_8888, false);
+    }
+    this.bitmap = bitmap;
+    this.width = bitmap.getWidth();
+    this.height = bitmap.getHeight();
+    this.mipmap = mipmap;
+    this.ring = ring;
+    this.callback = callback;
+
+    bind(0);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+  }
+
+  public int width() {
+    return width;
+  }
+
+  public int height() {
+    return height;
+  }
+
+  /**
+   * Whether the texture has been completely uploaded and can be sampled.
+   */
+  public boolean isReady() {
+    return ready;
+  }
+
+  /**
+   * Advances the upload as far as possible without blocking.  This must be called on the
+   * GL thread, typically once per frame, until it returns true.
+   *
+   * @return true if the texture is ready to be sampled.
+   */
+  public boolean upload() {
+    if (ready) {
+      return true;
+    }
+
+    if (GLState.INSTANCE.getGlVersion() != GLState.GLVersion.GLES_30) {
+      bind(0);
+      texImage2D(GL_TEXTURE_2D, 0, bitmap, 0);
+      if (mipmap) {
+        glGenerateMipmap(GL_TEXTURE_2D);
+      }
+      bitmap = null;
+      onReady();
+      return true;
+    }
+
+    if (!started) {
+      start();
+    }
+
+    final int rowBytes = width * 4;
+    final int rowsPerSlot = ring.slotSize() / rowBytes;
+    while (nextRow < height) {
+      int slot = ring.acquire();
+      if (slot < 0) {
+        break;
+      }
+
+      int rows = Math.min(rowsPerSlot, height - nextRow);
+      int length = rows * rowBytes;
+
+      ByteBuffer buffer = ring.map(slot, length);
+      if (buffer == null) {
+        GLState.INSTANCE.getLogger().log(String.format("AsyncBitmapTexture: Failed to map "
+            + "unpack buffer for rows [%d, %d), retrying next frame.", nextRow, nextRow + rows));
+        ring.fence(slot);
+        break;
+      }
+      // copy only this strip, a row at a time through a reused array, into the mapped slot, so
+      // the CPU work per frame is bounded by the slot size and overlaps earlier transfers
+      buffer.order(ByteOrder.LITTLE_ENDIAN);
+      BitmapTexture.copyPixels(bitmap, 0, nextRow, width, rows, row, buffer, 0, width);
+      ring.unmap();
+
+      bind(0);
+      glTexSubImage2DPBO(GL_TEXTURE_2D, 0, 0, nextRow, width, rows, GL_RGBA, GL_UNSIGNED_BYTE, 0);
+      ring.fence(slot);
+
+      nextRow += rows;
+    }
+
+    if (nextRow == height && fence == 0) {
+      if (mipmap) {
+        bind(0);
+        glGenerateMipmap(GL_TEXTURE_2D);
+      }
+      bitmap = null;
+      row = null;
+      fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+      glFlush();
+    }
+
+    if (fence != 0) {
+      int status = glClientWaitSync(fence, 0, 0);
+      if (status == GL_ALREADY_SIGNALED || status == GL_CONDITION_SATISFIED) {
+        glDeleteSync(fence);
+        fence = 0;
+        onReady();
+      }
+    }
+    return ready;
+  }
+
+  private void start() {
+    final int rowBytes = width * 4;
+    if (ring == null) {
+      ring = new UnpackBufferRing(DEFAULT_SLOTS,
+          Math.max(rowBytes, Math.min(DEFAULT_SLOT_SIZE, rowBytes * height)));
+      ownsRing = true;
+    } else if (ring.slotSize() < rowBytes) {
+      throw new IllegalArgumentException("Ring slot size " + ring.slotSize()
+          + " is smaller than a single row of " + rowBytes + " bytes.");
+    }
+
+    // allocate the storage for the whole image, strips are filled in afterwards
+    bind(0);
+    int levels = mipmap ? TextureStorage.mipLevelCount(width, height) : 1;
+    TextureStorage.texStorage2D(GL_TEXTURE_2D, levels, GL_RGBA, width, height, GL_RGBA,
+        GL_UNSIGNED_BYTE);
+    row = new int[width];
+    started = true;
+  }
+
+  private void onReady() {
+    ready = true;
+    if (ownsRing) {
+      ring.destroy();
+      ring = null;
+    }
+    if (callback != null) {
+      callback.onTextureReady(this);
+    }
+  }
+
+  @Override public void destroy() {
+    if (fence != 0) {
+      glDeleteSync(fence);
+      fence = 0;
+    }
+    if (ownsRing && ring != null) {
+      ring.destroy();
+      ring = null;
+    }
+    bitmap = null;
+    row = null;
+    super.destroy();
+  }
+}
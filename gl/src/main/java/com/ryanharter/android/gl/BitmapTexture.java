@@ -1,19 +1,32 @@
 package com.ryanharter.android.gl;
 
 import android.graphics.Bitmap;
+import android.graphics.Rect;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 
 import static android.opengl.GLES20.GL_CLAMP_TO_EDGE;
 import static android.opengl.GLES20.GL_LINEAR;
 import static android.opengl.GLES20.GL_OUT_OF_MEMORY;
+import static android.opengl.GLES20.GL_RGBA;
 import static android.opengl.GLES20.GL_TEXTURE_2D;
 import static android.opengl.GLES20.GL_TEXTURE_MAG_FILTER;
 import static android.opengl.GLES20.GL_TEXTURE_MIN_FILTER;
 import static android.opengl.GLES20.GL_TEXTURE_WRAP_S;
 import static android.opengl.GLES20.GL_TEXTURE_WRAP_T;
+import static android.opengl.GLES20.GL_UNSIGNED_BYTE;
 import static android.opengl.GLES20.glGenerateMipmap;
 import static android.opengl.GLES20.glGetError;
+import static android.opengl.GLES20.glPixelStorei;
 import static android.opengl.GLES20.glTexParameteri;
+import static android.opengl.GLES20.glTexSubImage2D;
+import static android.opengl.GLES30.GL_RGBA8;
+import static android.opengl.GLES30.GL_UNPACK_ROW_LENGTH;
+import static android.opengl.GLES30.GL_UNPACK_SKIP_PIXELS;
+import static android.opengl.GLES30.GL_UNPACK_SKIP_ROWS;
+import static android.opengl.GLES30.glTexStorage2D;
 import static android.opengl.GLUtils.texImage2D;
+import static android.opengl.GLUtils.texSubImage2D;
 
 /**
  * Creates a GL texture and uploads the supplied Bitmap.
@@ -21,6 +34,14 @@ import static android.opengl.GLUtils.texImage2D;
 public class BitmapTexture extends Texture {
 
   private int width, height;
+  private final boolean mipmap;
+
+  private final DirtyRegion dirtyRegion = new DirtyRegion();
+  private Bitmap dirtyBitmap;
+  private boolean dirtyMipmaps;
+  private final int[] dirtyBounds = new int[4];
+  private ByteBuffer staging;
+  private int[] row;
 
   public BitmapTexture(Bitmap bitmap) {
     this(bitmap, true);
@@ -28,6 +49,7 @@ public class BitmapTexture extends Texture {
 
   public BitmapTexture(Bitmap bitmap, boolean mipmap) {
     super();
+    this.mipmap = mipmap;
     bind(0);
 
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
@@ -35,14 +57,24 @@ public class BitmapTexture extends Texture {
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
 
+    // On GLES 3 allocate immutable storage for all levels up front, so generating
+    // mipmaps doesn't reallocate the texture.
+    final boolean immutable = GLState.INSTANCE.getGlVersion() == GLState.GLVersion.GLES_30
+        && bitmap.getConfig() == Bitmap.Config.ARGB_8888;
+
     // attempt to load the bitmap with backouts
     int attempts = 0;
     boolean loaded = false;
     while (!loaded && attempts < 3) {
-      texImage2D(GL_TEXTURE_2D, 0, bitmap, 0);
+      if (immutable) {
+        int levels = mipmap ? TextureStorage.mipLevelCount(bitmap.getWidth(), bitmap.getHeight()) : 1;
+        glTexStorage2D(GL_TEXTURE_2D, levels, GL_RGBA8, bitmap.getWidth(), bitmap.getHeight());
+      } else {
+        texImage2D(GL_TEXTURE_2D, 0, bitmap, 0);
 
-      if (mipmap) {
-        glGenerateMipmap(GL_TEXTURE_2D);
+        if (mipmap) {
+          glGenerateMipmap(GL_TEXTURE_2D);
+        }
       }
 
       int error = glGetError();
@@ -57,6 +89,14 @@ public class BitmapTexture extends Texture {
         System.gc();
         ++attempts;
       } else {
+        if (immutable) {
+          texSubImage2D(GL_TEXTURE_2D, 0, 0, 0, bitmap);
+
+          if (mipmap) {
+            glGenerateMipmap(GL_TEXTURE_2D);
+          }
+        }
+
         loaded = true;
         width = bitmap.getWidth();
         height = bitmap.getHeight();
@@ -64,6 +104,17 @@ public class BitmapTexture extends Texture {
     }
   }
 
+  /**
+   * Wraps a texture that has already been uploaded elsewhere, like those created by
+   * {@link TextureLoader}.
+   */
+  public BitmapTexture(int name, int width, int height, boolean mipmap) {
+    super(name);
+    this.width = width;
+    this.height = height;
+    this.mipmap = mipmap;
+  }
+
   public int width() {
     return width;
   }
@@ -72,4 +123,184 @@ public class BitmapTexture extends Texture {
     return height;
   }
 
+  @Override public void bind(int unit) {
+    super.bind(unit);
+    if (dirtyBitmap != null) {
+      GLState.INSTANCE.setTextureUnit(unit);
+      upload();
+    }
+  }
+
+  /**
+   * Updates the region of the texture covered by <code>dirty</code> with the contents of
+   * <code>bitmap</code>, regenerating mipmaps if the texture has them.
+   *
+   * @see #update(Bitmap, Rect, boolean)
+   */
+  public void update(Bitmap bitmap, Rect dirty) {
+    update(bitmap, dirty, mipmap);
+  }
+
+  /**
+   * Updates the region of the texture covered by <code>dirty</code> with the contents of
+   * <code>bitmap</code>, which must be an ARGB_8888 bitmap the same size as the texture.
+   *
+   * Uploads are deferred until the texture is next bound, or {@link #flushUpdates()} is
+   * called, so that all of the updates made within a frame are coalesced into as few
+   * uploads as possible.
+   *
+   * @param updateMipmaps Whether to regenerate mipmaps once the updates are uploaded.  Pass
+   *                      false while making many successive edits to skip the cost until
+   *                      the final one.
+   */
+  public void update(Bitmap bitmap, Rect dirty, boolean updateMipmaps) {
+    if (bitmap.getWidth() != width || bitmap.getHeight() != height) {
+      throw new IllegalArgumentException("Bitmap must match texture dimensions.");
+    }
+    if (bitmap.getConfig() != Bitmap.Config.ARGB_8888) {
+      throw new IllegalArgumentException("Bitmap must have ARGB_8888 config.");
+    }
+
+    if (dirtyBitmap != null && dirtyBitmap != bitmap) {
+      flushUpdates();
+    }
+    dirtyBitmap = bitmap;
+    dirtyMipmaps |= updateMipmaps && mipmap;
+    dirtyRegion.add(Math.max(0, dirty.left), Math.max(0, dirty.top),
+        Math.min(width, dirty.right), Math.min(height, dirty.bottom));
+  }
+
+  /**
+   * Immediately uploads any pending updates.
+   */
+  public void flushUpdates() {
+    if (dirtyBitmap != null) {
+      super.bind(0);
+      GLState.INSTANCE.setTextureUnit(0);
+      upload();
+    }
+  }
+
+  /**
+   * Uploads the dirty region to the texture bound to the active texture unit.
+   */
+  private void upload() {
+    final Bitmap bitmap = dirtyBitmap;
+    dirtyBitmap = null;
+    if (dirtyRegion.isEmpty()) {
+      dirtyMipmaps = false;
+      return;
+    }
+
+    if (row == null || row.length < width) {
+      row = new int[width];
+    }
+
+    if (GLState.INSTANCE.getGlVersion() == GLState.GLVersion.GLES_30) {
+      // Stage every rect once, in full width rows covering the damage, and let the driver pick
+      // each rect out with the row length and skip parameters.
+      dirtyRegion.getBounds(dirtyBounds);
+      final int top = dirtyBounds[1];
+      ensureStaging(width * (dirtyBounds[3] - top));
+      for (int i = 0; i < dirtyRegion.size(); i++) {
+        int x = dirtyRegion.left(i);
+        int y = dirtyRegion.top(i);
+        copyPixels(bitmap, x, y, dirtyRegion.right(i) - x, dirtyRegion.bottom(i) - y, row,
+            staging, (y - top) * width + x, width);
+      }
+
+      glPixelStorei(GL_UNPACK_ROW_LENGTH, width);
+      for (int i = 0; i < dirtyRegion.size(); i++) {
+        int x = dirtyRegion.left(i);
+        int y = dirtyRegion.top(i);
+        glPixelStorei(GL_UNPACK_SKIP_PIXELS, x);
+        glPixelStorei(GL_UNPACK_SKIP_ROWS, y - top);
+        staging.position(0);
+        glTexSubImage2D(GL_TEXTURE_2D, 0, x, y, dirtyRegion.right(i) - x,
+            dirtyRegion.bottom(i) - y, GL_RGBA, GL_UNSIGNED_BYTE, staging);
+      }
+      glPixelStorei(GL_UNPACK_ROW_LENGTH, 0);
+      glPixelStorei(GL_UNPACK_SKIP_PIXELS, 0);
+      glPixelStorei(GL_UNPACK_SKIP_ROWS, 0);
+    } else {
+      // GLES 2 has no row length, so pack each rect's rows tightly
+      for (int i = 0; i < dirtyRegion.size(); i++) {
+        int x = dirtyRegion.left(i);
+        int y = dirtyRegion.top(i);
+        int w = dirtyRegion.right(i) - x;
+        int h = dirtyRegion.bottom(i) - y;
+        ensureStaging(w * h);
+        copyPixels(bitmap, x, y, w, h, row, staging, 0, w);
+        staging.position(0);
+        glTexSubImage2D(GL_TEXTURE_2D, 0, x, y, w, h, GL_RGBA, GL_UNSIGNED_BYTE, staging);
+      }
+    }
+
+    if (dirtyMipmaps) {
+      glGenerateMipmap(GL_TEXTURE_2D);
+    }
+    dirtyRegion.clear();
+    dirtyMipmaps = false;
+  }
+
+  private void ensureStaging(int pixels) {
+    if (staging == null || staging.capacity() < pixels * 4) {
+      staging = ByteBuffer.allocateDirect(pixels * 4).order(ByteOrder.LITTLE_ENDIAN);
+    }
+  }
+
+  /**
+   * Copies the <code>w</code> by <code>h</code> rect of <code>bitmap</code> at
+   * <code>(x, y)</code> into <code>out</code> as premultiplied RGBA, the layout of the texture,
+   * starting <code>offset</code> pixels into the buffer with rows <code>stride</code> pixels
+   * apart.  Bitmaps only expose their pixels one row at a time, through <code>row</code>, which
+   * must hold at least <code>w</code> pixels, so nothing outside of the rect is copied.
+   */
+  static void copyPixels(Bitmap bitmap, int x, int y, int w, int h, int[] row, ByteBuffer out,
+      int offset, int stride) {
+    final boolean littleEndian = out.order() == ByteOrder.LITTLE_ENDIAN;
+    for (int r = 0; r < h; r++) {
+      bitmap.getPixels(row, 0, w, x, y + r, w, 1);
+      int index = (offset + r * stride) * 4;
+      for (int i = 0; i < w; i++, index += 4) {
+        int rgba = premultipliedRgba(row[i]);
+        out.putInt(index, littleEndian ? rgba : Integer.reverseBytes(rgba));
+      }
+    }
+  }
+
+  /**
+   * Converts an unpremultiplied ARGB color, as returned by {@link Bitmap#getPixels}, to the
+   * premultiplied RGBA bytes of an ARGB_8888 bitmap, packed as a little endian int.
+   */
+  static int premultipliedRgba(int argb) {
+    final int a = argb >>> 24;
+    int r = (argb >> 16) & 0xff;
+    int g = (argb >> 8) & 0xff;
+    int b = argb & 0xff;
+    if (a != 0xff) {
+      r = mulDiv255(r, a);
+      g = mulDiv255(g, a);
+      b = mulDiv255(b, a);
+    }
+    return a << 24 | b << 16 | g << 8 | r;
+  }
+
+  /**
+   * Returns <code>c * a / 255</code>, rounded to the nearest integer, the same way Skia
+   * premultiplies, so that colors read back from a bitmap premultiply to their stored values.
+   */
+  private static int mulDiv255(int c, int a) {
+    final int t = c * a + 128;
+    return (t + (t >> 8)) >> 8;
+  }
+
+  @Override public void destroy() {
+    dirtyBitmap = null;
+    dirtyRegion.clear();
+    staging = null;
+    row = null;
+    super.destroy();
+  }
+
 }
@@ -1,81 +1,616 @@
 package com.ryanharter.android.gl;
 
+import android.os.Build;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import static android.opengl.GLES20.GL_ALPHA;
+import static android.opengl.GLES20.GL_RGBA;
+import static android.opengl.GLES30.GL_R8;
+import static android.opengl.GLES30.GL_RED;
+
 /**
  * Created by rharter on 2/7/15.
  */
 public class BlurableTexture extends WritableTexture {
 
+  /** Blurs with full resolution separable passes. */
+  public static final int MODE_SEPARABLE = 0;
+  /**
+   * Blurs by downsampling into progressively smaller targets and upsampling back, which costs
+   * far less for large amounts.
+   */
+  public static final int MODE_PYRAMID = 1;
+  /**
+   * Blurs with full resolution separable passes of a true Gaussian kernel, whose taps are
+   * generated for the amount.  On OpenGL ES 3.1 the passes run as compute shaders.  Amounts
+   * whose kernel needs more uniforms than the GPU has fall back to {@link #MODE_PYRAMID}.
+   */
+  public static final int MODE_GAUSSIAN = 2;
+  /**
+   * Blurs with iterated box filters evaluated from a {@link SummedAreaTable}, whose cost doesn't
+   * depend on the amount.  The quality is the number of boxes, more of which look closer to a
+   * Gaussian.  Requires OpenGL ES 3.0, and falls back to {@link #MODE_SEPARABLE} otherwise.
+   */
+  public static final int MODE_BOX = 3;
+
   private BlurProgram blurProgram;
+  private GaussianBlurProgram gaussianProgram;
+  private GaussianKernel gaussianKernel;
+  private ComputeBlur computeBlur;
+  private PyramidBlur pyramidBlur;
+  private SummedAreaTable summedAreaTable;
+  private int mode = MODE_SEPARABLE;
+  private RenderTargetPool pool;
+  private boolean ownsPool;
 
   private final float[] texelOffset = new float[2];
   private WritableTexture intTexture;
+  private int discardAfterBlur = DISCARD_NONE;
+  private final boolean singleChannel;
+
+  private final DirtyRegion region = new DirtyRegion();
+  private final DirtyRegion apron = new DirtyRegion();
+  private WritableTexture lastOutput;
+  private float lastAmount;
+  private long lastSourceGeneration;
+  private long lastOutputGeneration;
+
+  // the last blur, which doesn't need repeating until its source or output changes
+  private WritableTexture cachedOutput;
+  private long cachedSourceGeneration;
+  private long cachedOutputGeneration;
+  private float cachedAmount;
+  private int cachedQuality;
+  private int cachedMode;
+  private boolean cacheInPlaceBlurs;
 
   public BlurableTexture(int width, int height, boolean hasDepth) {
-    super(width, height, hasDepth, false);
-    intTexture = new WritableTexture(width, height, false, false);
+    this(width, height, hasDepth, GL_RGBA);
+  }
+
+  /**
+   * Creates a texture with the given internal format.  Masks, like those of shadows or
+   * selections, can use <code>GL_R8</code> or <code>GL_ALPHA</code>, which are stored and blurred
+   * as a single red channel, using a quarter of the memory and bandwidth of RGBA.
+   *
+   * Single channel render targets require OpenGL ES 3.0 or <code>GL_EXT_texture_rg</code>,
+   * without which the texture falls back to RGBA.
+   */
+  public BlurableTexture(int width, int height, boolean hasDepth, int internalFormat) {
+    super(width, height, hasDepth, false, renderableFormat(internalFormat));
+    singleChannel = isSingleChannel(getInternalFormat());
+    intTexture = new WritableTexture(width, height, false, false, getInternalFormat());
 
     switch (GLState.INSTANCE.getGlVersion()) {
       case GLES_20:
-        blurProgram = new GLES2BlurProgram();
+        blurProgram = new GLES2BlurProgram(singleChannel);
         break;
       case GLES_30:
-        blurProgram = new GLES3BlurProgram();
+        blurProgram = new GLES3BlurProgram(singleChannel);
         break;
     }
   }
 
+  private static int renderableFormat(int internalFormat) {
+    if (internalFormat != GL_R8 && internalFormat != GL_ALPHA) {
+      return internalFormat;
+    }
+    if (GLState.INSTANCE.getGlVersion() == GLState.GLVersion.GLES_30) {
+      return GL_R8;
+    }
+    if (GLState.INSTANCE.hasExtension("GL_EXT_texture_rg")) {
+      // GL_RED_EXT, which is unsized on OpenGL ES 2.0
+      return GL_RED;
+    }
+    GLState.INSTANCE.getLogger().log("BlurableTexture: Single channel render targets aren't "
+        + "supported, falling back to RGBA.");
+    return GL_RGBA;
+  }
+
+  private static boolean isSingleChannel(int internalFormat) {
+    return internalFormat == GL_R8 || internalFormat == GL_RED;
+  }
+
+  /**
+   * Returns the defines that select the channels the blur shaders read and write.
+   */
+  static Map<String, String> channelDefines(boolean singleChannel) {
+    final Map<String, String> defines = new HashMap<>();
+    defines.put("SAMPLE_TYPE", singleChannel ? "float" : "vec4");
+    defines.put("CHANNELS", singleChannel ? "r" : "rgba");
+    return Collections.unmodifiableMap(defines);
+  }
+
+  /**
+   * Sets the attachments of this texture whose contents aren't needed once a blur
+   * completes, like {@link #DISCARD_DEPTH} when the depth buffer was only used to render
+   * the image being blurred.  Defaults to {@link #DISCARD_NONE}.
+   */
+  public void setDiscardAfterBlur(int discard) {
+    discardAfterBlur = discard;
+  }
+
+  /**
+   * Sets whether repeating an in-place {@link #blur(float, int)} with the same parameters does
+   * nothing until this texture is written to again.  Defaults to false, so that each call blurs
+   * the texture further, as it always has.  Enable it when the same blur may be requested every
+   * frame, and the texture only needs blurring once per change.
+   */
+  public void setCacheInPlaceBlurs(boolean cacheInPlaceBlurs) {
+    this.cacheInPlaceBlurs = cacheInPlaceBlurs;
+  }
+
+  /**
+   * Sets how the blur is performed, either {@link #MODE_SEPARABLE}, the default,
+   * {@link #MODE_PYRAMID}, {@link #MODE_GAUSSIAN} or {@link #MODE_BOX}.
+   */
+  public void setMode(int mode) {
+    if (mode != MODE_SEPARABLE && mode != MODE_PYRAMID && mode != MODE_GAUSSIAN
+        && mode != MODE_BOX) {
+      throw new IllegalArgumentException("Unknown blur mode: " + mode);
+    }
+    this.mode = mode;
+    lastOutput = null;
+  }
+
+  /**
+   * Sets the pool that {@link #MODE_PYRAMID} and region blurs take their intermediate targets
+   * from, so that they can be shared with other effects.  By default the texture uses a pool of
+   * its own.
+   */
+  public void setRenderTargetPool(RenderTargetPool pool) {
+    if (ownsPool) {
+      this.pool.destroy();
+      ownsPool = false;
+    }
+    this.pool = pool;
+  }
+
+  /**
+   * Resizes this texture and its intermediate texture.  The blur shaders sample the whole
+   * texture, so the storage is always reallocated, regardless of <code>keepStorage</code>.
+   */
+  @Override
+  public void resize(int width, int height, boolean keepStorage) {
+    super.resize(width, height, false);
+    intTexture.resize(width, height, false);
+    lastOutput = null;
+    cachedOutput = null;
+    if (ownsPool) {
+      // the old sizes won't be needed again
+      pool.trim();
+    }
+  }
+
   /**
    * Blurs the image contained in the texture.
    *
+   * In {@link #MODE_PYRAMID} and {@link #MODE_GAUSSIAN} the quality is ignored, and the number
+   * of levels or taps is chosen from <code>amount</code>.
+   *
+   * With {@link #setCacheInPlaceBlurs(boolean)} enabled, repeating the same blur does nothing
+   * until the texture is written to again, since it already holds the result.  Otherwise each
+   * call blurs the result of the last.
+   *
    * @param amount The amount of blur to apply, from 0.0 to 1.0
    * @param quality The quality of the blur.
    */
   public void blur(float amount, int quality) {
+    if (cacheInPlaceBlurs && isCached(this, amount, quality)) {
+      return;
+    }
+    blurInPlace(amount, quality);
+    if (cacheInPlaceBlurs) {
+      cache(this, amount, quality);
+    }
+  }
+
+  private void blurInPlace(float amount, int quality) {
     amount *= 0.01;
 
+    if (mode == MODE_BOX && boxBlur(this, amount, quality)) {
+      lastOutput = null;
+      getDamage().add(0, 0, getWidth(), getHeight());
+      return;
+    }
+
+    if (mode == MODE_PYRAMID || (mode == MODE_GAUSSIAN && !gaussianFits(amount))) {
+      blurPyramid(this, blurRadius(amount), discardAfterBlur);
+      lastOutput = null;
+      getDamage().add(0, 0, getWidth(), getHeight());
+      return;
+    }
+
+    if (mode == MODE_GAUSSIAN) {
+      final BlurProgram program = gaussianProgram(amount);
+      if (computeBlur(this)) {
+        lastOutput = null;
+        getDamage().add(0, 0, getWidth(), getHeight());
+        return;
+      }
+      pass(program, intTexture, this, 0, 1f / getHeight(), null, DISCARD_COLOR, DISCARD_NONE);
+      pass(program, this, intTexture, 1f / getWidth(), 0, null, DISCARD_COLOR, discardAfterBlur);
+      lastOutput = null;
+      getDamage().add(0, 0, getWidth(), getHeight());
+      return;
+    }
+
     final float aspect = (float) getWidth() / getHeight();
     float incrementAmount = amount;
     for (int i = 0; i < quality; i++) {
-      // bind the intermediate texture
-      intTexture.bindFramebuffer();
+      // blur in the y direction into the intermediate texture, which is completely overwritten
+      pass(blurProgram, intTexture, this, 0, incrementAmount * aspect, null, DISCARD_COLOR,
+          DISCARD_NONE);
 
-      // No blending since we're overwriting the texture
-      GLState.INSTANCE.setBlend(false, false);
+      // now draw intermediate texture back into this, blurring in x direction
+      pass(blurProgram, this, intTexture, incrementAmount, 0, null, DISCARD_COLOR,
+          i == quality - 1 ? discardAfterBlur : DISCARD_NONE);
 
-      // draw to the intermediate texture, blurring
-      // in the y direction
-      blurProgram.program().use();
+      incrementAmount = amount / quality;
+    }
 
-      bind(0);
-      blurProgram.bindImage(0);
+    // the intermediate texture no longer matches the last output
+    lastOutput = null;
+    getDamage().add(0, 0, getWidth(), getHeight());
+  }
 
-      texelOffset[0] = 0;
-      texelOffset[1] = incrementAmount * aspect;
-      blurProgram.bindTexelOffset(texelOffset);
+  /**
+   * Blurs the image contained in this texture into <code>output</code>, leaving this texture
+   * untouched.
+   *
+   * Since the source is preserved, repeating a blur of quality 1 with the same amount into the
+   * same output only re-blurs the {@link #getDamage() damaged} regions of this texture, grown by
+   * the blur radius, as long as this texture was only drawn to with {@link #drawDamage} since, and
+   * the output wasn't drawn to at all.  Otherwise the whole texture is blurred again.  The damage
+   * of this texture is consumed, and the regions of <code>output</code> that changed are added to
+   * its damage.
+   *
+   * Repeating the same blur into the same output does nothing while neither this texture nor
+   * the output have been written to since.
+   *
+   * @param amount The amount of blur to apply, from 0.0 to 1.0
+   * @param quality The quality of the blur.
+   * @param output The texture to write the result to, which must be the same size as this.
+   */
+  public void blur(float amount, int quality, WritableTexture output) {
+    if (output.getWidth() != getWidth() || output.getHeight() != getHeight()) {
+      throw new IllegalArgumentException("Blur output must be the same size as the source.");
+    }
+    if (isCached(output, amount, quality)) {
+      return;
+    }
+    blurInto(amount, quality, output);
+    cache(output, amount, quality);
+  }
 
-      GLState.INSTANCE.render();
+  private void blurInto(float amount, int quality, WritableTexture output) {
+
+    final DirtyRegion damage = getDamage();
+    if (mode == MODE_PYRAMID || (mode == MODE_GAUSSIAN && !gaussianFits(amount * 0.01f))) {
+      // every level depends on the whole source, so there's no partial re-blur
+      blurPyramid(output, blurRadius(amount * 0.01f), DISCARD_NONE);
+      output.getDamage().add(0, 0, getWidth(), getHeight());
+      damage.clear();
+      lastOutput = null;
+      return;
+    }
 
-      intTexture.unbindFramebuffer(true);
+    if (mode == MODE_BOX && boxBlur(output, amount * 0.01f, quality)) {
+      // every output pixel is recomputed from the table, which covers the whole source
+      output.getDamage().add(0, 0, getWidth(), getHeight());
+      damage.clear();
+      lastOutput = null;
+      return;
+    }
+
+    final boolean gaussian = mode == MODE_GAUSSIAN;
+    final int passes = gaussian ? 1 : quality;
+    // the output must still hold the last result, and the source can only have changed within
+    // its damage, otherwise there's no telling which pixels are stale
+    final boolean partial = passes == 1 && output == lastOutput && amount == lastAmount
+        && output.getGeneration() == lastOutputGeneration
+        && getUndamagedGeneration() <= lastSourceGeneration;
+    final float aspect = (float) getWidth() / getHeight();
+    final float scaled = amount * 0.01f;
+    final BlurProgram program = gaussian ? gaussianProgram(scaled) : blurProgram;
+    final int radius = gaussian ? gaussianKernel.radius() + 1 : blurRadius(scaled);
+
+    if (partial) {
+      if (damage.isEmpty()) {
+        return;
+      }
+      // a pixel only changes if the source changed within the blur radius of it
+      region.clear();
+      region.add(damage);
+      region.expand(radius, getWidth(), getHeight());
+
+      // intTexture still holds the previous result outside of the region, so it can't be discarded
+      pass(program, intTexture, this, 0, gaussian ? 1f / getHeight() : scaled * aspect, region,
+          DISCARD_NONE, DISCARD_NONE);
+      pass(program, output, intTexture, gaussian ? 1f / getWidth() : scaled, 0, region,
+          DISCARD_NONE, DISCARD_NONE);
+      output.getDamage().add(region);
+    } else if (gaussian && computeBlur(output)) {
+      output.getDamage().add(0, 0, getWidth(), getHeight());
+    } else {
+      float incrementAmount = scaled;
+      for (int i = 0; i < passes; i++) {
+        pass(program, intTexture, i == 0 ? this : output, 0,
+            gaussian ? 1f / getHeight() : incrementAmount * aspect, null, DISCARD_COLOR,
+            DISCARD_NONE);
+        pass(program, output, intTexture, gaussian ? 1f / getWidth() : incrementAmount, 0, null,
+            DISCARD_COLOR, DISCARD_NONE);
+        incrementAmount = scaled / quality;
+      }
+      output.getDamage().add(0, 0, getWidth(), getHeight());
+    }
+
+    damage.clear();
+    lastOutput = passes == 1 ? output : null;
+    lastAmount = amount;
+    lastSourceGeneration = getGeneration();
+    lastOutputGeneration = output.getGeneration();
+  }
+
+  /**
+   * Blurs only the rectangle from <code>(left, top)</code> to <code>(right, bottom)</code> of the
+   * image contained in this texture, in framebuffer coordinates, leaving the rest untouched.
+   *
+   * Only the rectangle, and the apron around it that the blur samples from, are rendered, so the
+   * cost scales with the size of the rectangle rather than the texture.
+   *
+   * In {@link #MODE_PYRAMID} and {@link #MODE_BOX} the rectangle is blurred with the Gaussian
+   * kernel instead, since every level of the pyramid, and the summed-area table, depend on the
+   * whole image.  The kernel is limited to the taps the GPU's uniforms can hold, so very large
+   * amounts blur the rectangle less than the whole image would be.
+   *
+   * @param amount The amount of blur to apply, from 0.0 to 1.0
+   * @param quality The quality of the blur.
+   */
+  public void blur(float amount, int quality, int left, int top, int right, int bottom) {
+    blur(amount, quality, this, left, top, right, bottom);
+  }
+
+  /**
+   * Blurs only the rectangle from <code>(left, top)</code> to <code>(right, bottom)</code> of the
+   * image contained in this texture into the same rectangle of <code>output</code>, leaving the
+   * rest of <code>output</code> untouched.
+   *
+   * @see #blur(float, int, int, int, int, int)
+   */
+  public void blur(float amount, int quality, WritableTexture output, int left, int top,
+      int right, int bottom) {
+    if (output.getWidth() != getWidth() || output.getHeight() != getHeight()) {
+      throw new IllegalArgumentException("Blur output must be the same size as the source.");
+    }
+    left = Math.max(0, left);
+    top = Math.max(0, top);
+    right = Math.min(getWidth(), right);
+    bottom = Math.min(getHeight(), bottom);
+    if (left >= right || top >= bottom) {
+      return;
+    }
+
+    final boolean separable = mode == MODE_SEPARABLE;
+    final int passes = separable ? quality : 1;
+    final float scaled = amount * 0.01f;
+    final float aspect = (float) getWidth() / getHeight();
+    final BlurProgram program = separable ? blurProgram : gaussianProgram(scaled);
+
+    // every iteration reads the apron of the one before it
+    final int[] radii = new int[passes];
+    int apronSize = 0;
+    float incrementAmount = scaled;
+    for (int i = 0; i < passes; i++) {
+      radii[i] = separable ? blurRadius(incrementAmount) : gaussianKernel.radius() + 1;
+      apronSize += radii[i];
+      incrementAmount = scaled / quality;
+    }
+
+    // earlier iterations can't write the output outside the rectangle, so they use a temporary
+    final WritableTexture temp = passes > 1 ? pool().acquire(getWidth(), getHeight(), getInternalFormat())
+        : null;
+    try {
+      Texture source = this;
+      incrementAmount = scaled;
+      for (int i = 0; i < passes; i++) {
+        apronSize -= radii[i];
+        final WritableTexture target = i == passes - 1 ? output : temp;
+
+        apron.clear();
+        apron.add(left, top, right, bottom);
+        apron.expand(apronSize + radii[i], getWidth(), getHeight());
+        region.clear();
+        region.add(left, top, right, bottom);
+        region.expand(apronSize, getWidth(), getHeight());
+
+        // only the apron of the intermediate texture is read, the rest can be discarded
+        pass(program, intTexture, source, 0,
+            separable ? incrementAmount * aspect : 1f / getHeight(), apron, DISCARD_COLOR,
+            DISCARD_NONE);
+        pass(program, target, intTexture, separable ? incrementAmount : 1f / getWidth(), 0, region,
+            DISCARD_NONE, target == this ? discardAfterBlur : DISCARD_NONE);
+
+        source = target;
+        incrementAmount = scaled / quality;
+      }
+    } finally {
+      if (temp != null) {
+        pool.release(temp);
+      }
+    }
+
+    output.getDamage().add(left, top, right, bottom);
+    // the intermediate texture only holds the apron, and the cached result is gone
+    lastOutput = null;
+    cachedOutput = null;
+  }
+
+  /**
+   * Whether <code>output</code> already holds the result of the blur with these parameters,
+   * because neither it nor this texture have changed since.
+   */
+  private boolean isCached(WritableTexture output, float amount, int quality) {
+    return output == cachedOutput
+        && getGeneration() == cachedSourceGeneration
+        && output.getGeneration() == cachedOutputGeneration
+        && amount == cachedAmount
+        && quality == cachedQuality
+        && mode == cachedMode;
+  }
+
+  private void cache(WritableTexture output, float amount, int quality) {
+    cachedOutput = output;
+    cachedSourceGeneration = getGeneration();
+    cachedOutputGeneration = output.getGeneration();
+    cachedAmount = amount;
+    cachedQuality = quality;
+    cachedMode = mode;
+  }
+
+  /**
+   * Returns the distance in pixels over which the blur shaders sample, for a texel offset of
+   * <code>offset</code> in texture coordinates.
+   */
+  private int blurRadius(float offset) {
+    // the farthest tap is 4 offsets away, plus one texel for linear filtering
+    return (int) Math.ceil(offset * 4 * getWidth()) + 1;
+  }
 
-      // now draw intermediate texture back into this,
-      // blurring in x direction
-      bindFramebuffer();
+  /**
+   * Whether the Gaussian kernel for a texel offset of <code>offset</code> fits in the uniforms
+   * of a fragment shader.
+   */
+  private boolean gaussianFits(float offset) {
+    return blurRadius(offset) / 3f <= maxGaussianSigma();
+  }
+
+  private static float maxGaussianSigma() {
+    return GaussianKernel.maxSigma(GaussianBlurProgram.maxTaps());
+  }
+
+  /**
+   * Returns the Gaussian program for a blur covering the same radius as the separable blur with
+   * a texel offset of <code>offset</code>.
+   */
+  private GaussianBlurProgram gaussianProgram(float offset) {
+    // the kernel is truncated at 3 sigma, and limited to what the program can link with
+    final float sigma = Math.min(blurRadius(offset) / 3f, maxGaussianSigma());
+    if (gaussianKernel == null || gaussianKernel.sigma() != sigma) {
+      gaussianKernel = GaussianKernel.create(sigma);
+    }
+    gaussianProgram = GaussianBlurProgram.forKernel(gaussianKernel, singleChannel,
+        gaussianProgram);
+    return gaussianProgram;
+  }
+
+  /**
+   * Blurs this texture into <code>output</code> with the current Gaussian kernel using compute
+   * shaders, returning false if they can't be used, so that the fragment passes should be.
+   */
+  private boolean computeBlur(WritableTexture output) {
+    if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
+        || !GLState.INSTANCE.supportsComputeShaders()
+        || !ComputeBlur.supports(gaussianKernel, output.getInternalFormat(),
+            output.getSampleCount())) {
+      return false;
+    }
+    if (computeBlur == null) {
+      computeBlur = new ComputeBlur();
+    }
+    if (!computeBlur.isValid()) {
+      return false;
+    }
+    computeBlur.pass(gaussianKernel, this, intTexture, getWidth(), getHeight(), false);
+    computeBlur.pass(gaussianKernel, intTexture, output, getWidth(), getHeight(), true);
+    return true;
+  }
+
+  /**
+   * Blurs this texture into <code>output</code> with <code>quality</code> box filters read from
+   * the summed-area table, returning false if the context can't build one.
+   */
+  private boolean boxBlur(WritableTexture output, float amount, int quality) {
+    if (GLState.INSTANCE.getGlVersion() != GLState.GLVersion.GLES_30) {
+      return false;
+    }
+    if (summedAreaTable == null) {
+      summedAreaTable = new SummedAreaTable();
+    }
+    final int iterations = Math.max(1, quality);
+    final int radius = SummedAreaTable.boxRadius(blurRadius(amount) / 3f, iterations);
+    Texture source = this;
+    for (int i = 0; i < iterations; i++) {
+      summedAreaTable.build(source, getWidth(), getHeight());
+      summedAreaTable.boxBlur(output, radius);
+      source = output;
+    }
+    return true;
+  }
 
-      intTexture.bind(0);
-      blurProgram.bindImage(0);
+  private void blurPyramid(WritableTexture output, float radius, int discardOnUnbind) {
+    if (pyramidBlur == null) {
+      pyramidBlur = new PyramidBlur(singleChannel);
+    }
+    pyramidBlur.blur(this, output, getWidth(), getHeight(), radius, pool(), getInternalFormat(),
+        discardOnUnbind);
+  }
+
+  private RenderTargetPool pool() {
+    if (pool == null) {
+      pool = new RenderTargetPool();
+      ownsPool = true;
+    }
+    return pool;
+  }
 
-      texelOffset[0] = incrementAmount;
-      texelOffset[1] = 0;
-      blurProgram.bindTexelOffset(texelOffset);
+  private void pass(BlurProgram program, WritableTexture target, Texture source, float offsetX,
+      float offsetY, DirtyRegion region, int discardOnBind, int discardOnUnbind) {
+    target.bindFramebuffer(discardOnBind);
 
+    // No blending since we're overwriting the texture
+    GLState.INSTANCE.setBlend(false, false);
+
+    program.program().use();
+
+    source.bind(0);
+    program.bindImage(0);
+
+    texelOffset[0] = offsetX;
+    texelOffset[1] = offsetY;
+    program.bindTexelOffset(texelOffset);
+
+    if (region == null) {
       GLState.INSTANCE.render();
-      unbindFramebuffer(true);
+    } else {
+      for (int i = 0; i < region.size(); i++) {
+        GLState.INSTANCE.setScissor(region, i);
+        GLState.INSTANCE.render();
+      }
+      GLState.INSTANCE.setScissorTest(false);
+    }
 
-      incrementAmount = amount / quality;
+    target.unbindFramebuffer(true, discardOnUnbind);
+  }
+
+  @Override public void destroy() {
+    super.destroy();
+    intTexture.destroy();
+    if (summedAreaTable != null) {
+      summedAreaTable.destroy();
+      summedAreaTable = null;
+    }
+    cachedOutput = null;
+    if (ownsPool) {
+      pool.destroy();
+      pool = null;
+      ownsPool = false;
     }
   }
 
-  private interface BlurProgram {
+  interface BlurProgram {
     Program program();
     void bindImage(int texture);
     void bindTexelOffset(float[] texelOffset);
@@ -98,23 +633,24 @@ public class BlurableTexture extends WritableTexture {
         + "varying highp vec2 v_textureCoordinate;\n"
         + "void main()\n"
         + "{\n"
-        + "    lowp vec4 sum = vec4(0.0);\n"
-        + "    sum += texture2D(inputImageTexture, v_textureCoordinate) * 0.1642;\n"
-        + "    sum += texture2D(inputImageTexture, v_textureCoordinate + texelOffset) * 0.1531;\n"
-        + "    sum += texture2D(inputImageTexture, v_textureCoordinate - texelOffset) * 0.1531;\n"
-        + "    sum += texture2D(inputImageTexture, v_textureCoordinate + texelOffset * 1.8) * 0.1224;\n"
-        + "    sum += texture2D(inputImageTexture, v_textureCoordinate - texelOffset * 1.8) * 0.1224;\n"
-        + "    sum += texture2D(inputImageTexture, v_textureCoordinate + texelOffset * 2.2) * 0.0918;\n"
-        + "    sum += texture2D(inputImageTexture, v_textureCoordinate - texelOffset * 2.2) * 0.0918;\n"
-        + "    sum += texture2D(inputImageTexture, v_textureCoordinate + texelOffset * 2.6) * 0.0510;\n"
-        + "    sum += texture2D(inputImageTexture, v_textureCoordinate - texelOffset * 2.6) * 0.0510;\n"
-        + "    gl_FragColor = sum;\n"
+        + "    lowp SAMPLE_TYPE sum = SAMPLE_TYPE(0.0);\n"
+        + "    sum += texture2D(inputImageTexture, v_textureCoordinate).CHANNELS * 0.1642;\n"
+        + "    sum += texture2D(inputImageTexture, v_textureCoordinate + texelOffset).CHANNELS * 0.1531;\n"
+        + "    sum += texture2D(inputImageTexture, v_textureCoordinate - texelOffset).CHANNELS * 0.1531;\n"
+        + "    sum += texture2D(inputImageTexture, v_textureCoordinate + texelOffset * 1.8).CHANNELS * 0.1224;\n"
+        + "    sum += texture2D(inputImageTexture, v_textureCoordinate - texelOffset * 1.8).CHANNELS * 0.1224;\n"
+        + "    sum += texture2D(inputImageTexture, v_textureCoordinate + texelOffset * 2.2).CHANNELS * 0.0918;\n"
+        + "    sum += texture2D(inputImageTexture, v_textureCoordinate - texelOffset * 2.2).CHANNELS * 0.0918;\n"
+        + "    sum += texture2D(inputImageTexture, v_textureCoordinate + texelOffset * 2.6).CHANNELS * 0.0510;\n"
+        + "    sum += texture2D(inputImageTexture, v_textureCoordinate - texelOffset * 2.6).CHANNELS * 0.0510;\n"
+        + "    gl_FragColor = vec4(sum);\n"
         + "}";
 
     private final Program program;
 
-    private GLES2BlurProgram() {
-      this.program = Program.load(GLES2BlurProgram.class.getSimpleName(), VERTEX_SHADER, FRAGMENT_SHADER);
+    private GLES2BlurProgram(boolean singleChannel) {
+      this.program = Program.load(GLES2BlurProgram.class.getSimpleName() + (singleChannel ? "R" : ""),
+          VERTEX_SHADER, FRAGMENT_SHADER, channelDefines(singleChannel));
     }
 
     @Override public Program program() {
@@ -160,23 +696,24 @@ public class BlurableTexture extends WritableTexture {
         + "out vec4 fragmentColor;\n"
         + "void main()\n"
         + "{\n"
-        + "    lowp vec4 sum = vec4(0.0);\n"
-        + "    sum += texture(inputImageTexture, blurCoordinates[0]) * 0.1642;\n"
-        + "    sum += texture(inputImageTexture, blurCoordinates[1]) * 0.1531;\n"
-        + "    sum += texture(inputImageTexture, blurCoordinates[2]) * 0.1531;\n"
-        + "    sum += texture(inputImageTexture, blurCoordinates[3]) * 0.1224;\n"
-        + "    sum += texture(inputImageTexture, blurCoordinates[4]) * 0.1224;\n"
-        + "    sum += texture(inputImageTexture, blurCoordinates[3]) * 0.0918;\n"
-        + "    sum += texture(inputImageTexture, blurCoordinates[4]) * 0.0918;\n"
-        + "    sum += texture(inputImageTexture, blurCoordinates[3]) * 0.0510;\n"
-        + "    sum += texture(inputImageTexture, blurCoordinates[4]) * 0.0510;\n"
-        + "    fragmentColor = sum;\n"
+        + "    lowp SAMPLE_TYPE sum = SAMPLE_TYPE(0.0);\n"
+        + "    sum += texture(inputImageTexture, blurCoordinates[0]).CHANNELS * 0.1642;\n"
+        + "    sum += texture(inputImageTexture, blurCoordinates[1]).CHANNELS * 0.1531;\n"
+        + "    sum += texture(inputImageTexture, blurCoordinates[2]).CHANNELS * 0.1531;\n"
+        + "    sum += texture(inputImageTexture, blurCoordinates[3]).CHANNELS * 0.1224;\n"
+        + "    sum += texture(inputImageTexture, blurCoordinates[4]).CHANNELS * 0.1224;\n"
+        + "    sum += texture(inputImageTexture, blurCoordinates[3]).CHANNELS * 0.0918;\n"
+        + "    sum += texture(inputImageTexture, blurCoordinates[4]).CHANNELS * 0.0918;\n"
+        + "    sum += texture(inputImageTexture, blurCoordinates[3]).CHANNELS * 0.0510;\n"
+        + "    sum += texture(inputImageTexture, blurCoordinates[4]).CHANNELS * 0.0510;\n"
+        + "    fragmentColor = vec4(sum);\n"
         + "}";
 
     private final Program program;
 
-    private GLES3BlurProgram() {
-      this.program = Program.load(GLES3BlurProgram.class.getSimpleName(), VERTEX_SHADER, FRAGMENT_SHADER);
+    private GLES3BlurProgram(boolean singleChannel) {
+      this.program = Program.load(GLES3BlurProgram.class.getSimpleName() + (singleChannel ? "R" : ""),
+          VERTEX_SHADER, FRAGMENT_SHADER, channelDefines(singleChannel));
     }
 
     @Override public Program program() {
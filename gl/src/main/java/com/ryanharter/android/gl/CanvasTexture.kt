@@ -1,6 +1,7 @@
 package com.ryanharter.android.gl
 
 import android.graphics.Canvas
+import android.graphics.Rect
 import android.graphics.SurfaceTexture
 import android.opengl.GLES11Ext.GL_TEXTURE_EXTERNAL_OES
 import android.opengl.GLES20.GL_CLAMP_TO_EDGE
@@ -12,15 +13,34 @@ import android.opengl.GLES20.GL_TEXTURE_WRAP_T
 import android.opengl.GLES20.glActiveTexture
 import android.opengl.GLES20.glBindTexture
 import android.opengl.GLES20.glTexParameteri
+import android.os.Build
 import android.view.Surface
+import java.util.concurrent.atomic.AtomicBoolean
 
+/**
+ * A texture whose contents are drawn with an Android [Canvas].
+ *
+ * The backing [SurfaceTexture] and [Surface] are kept alive between draws, and only
+ * recreated when the size changes, so redrawing every frame doesn't allocate. Call [release]
+ * or [destroy] when the texture is no longer needed.
+ */
 open class CanvasTexture : Texture() {
 
+  /**
+   * Whether to draw using a hardware accelerated canvas, when available on API 23+, so that
+   * rasterization happens on the GPU. Hardware canvases always redraw the whole surface,
+   * so dirty rects passed to [draw] are ignored.
+   */
+  var useHardwareCanvas = false
+
   private var surfaceTexture: SurfaceTexture? = null
   private var surface: Surface? = null
+  private var surfaceWidth = 0
+  private var surfaceHeight = 0
   private var bindUnit = -1
 
-  private var cachedCanvas: Canvas? = null
+  private var lockedHardwareCanvas = false
+  private val frameAvailable = AtomicBoolean(false)
 
   init {
     glActiveTexture(0)
@@ -37,6 +57,12 @@ open class CanvasTexture : Texture() {
   override fun bind(unit: Int) {
     bindUnit = unit
     GLState.bindTexture(unit, GL_TEXTURE_EXTERNAL_OES, name)
+
+    // latch the most recent frame, updateTexImage binds to the active unit
+    if (frameAvailable.getAndSet(false)) {
+      GLState.setTextureUnit(unit)
+      surfaceTexture?.updateTexImage()
+    }
   }
 
   override fun unbind() {
@@ -46,37 +72,75 @@ open class CanvasTexture : Texture() {
     }
   }
 
-  fun draw(width: Int, height: Int, body: Canvas.() -> Unit) {
-    val cached = cachedCanvas
-    val canvas = if (cached != null && cached.width == width && cached.height == height) {
-      cached
-    } else {
-      beginDrawing(width, height).also {
-        cachedCanvas = it
-      }
-    }
-
+  /**
+   * Draws to the texture.
+   *
+   * If [dirty] is supplied only that region is redrawn, and the rest of the previous contents
+   * are preserved. The canvas may enlarge the region, in which case [dirty] is updated and
+   * [body] must redraw everything within it. The whole texture is redrawn the first time, or
+   * whenever the size changes.
+   */
+  @JvmOverloads
+  fun draw(width: Int, height: Int, dirty: Rect? = null, body: Canvas.() -> Unit) {
+    val canvas = beginDrawing(width, height, dirty)
     canvas.body()
     endDrawing(canvas)
   }
 
-  fun beginDrawing(width: Int, height: Int): Canvas {
-    surfaceTexture = SurfaceTexture(name).apply { setDefaultBufferSize(width, height) }
-    surface = Surface(surfaceTexture)
-    return surface!!.lockCanvas(null)
+  @JvmOverloads
+  fun beginDrawing(width: Int, height: Int, dirty: Rect? = null): Canvas {
+    var region = dirty
+    if (surface == null || width != surfaceWidth || height != surfaceHeight) {
+      createSurface(width, height)
+      region = null
+    }
+
+    val surface = surface!!
+    lockedHardwareCanvas = useHardwareCanvas && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M
+    return if (lockedHardwareCanvas) {
+      surface.lockHardwareCanvas()
+    } else {
+      surface.lockCanvas(region)
+    }
   }
 
   fun endDrawing(canvas: Canvas) {
     surface?.unlockCanvasAndPost(canvas)
-    surfaceTexture?.updateTexImage()
+
+    // Software canvases are queued by the time they're posted, so latch the frame right
+    // away instead of waiting for the callback, which is delivered on a looper. Hardware
+    // canvases are queued asynchronously and are latched on the next bind after the
+    // callback.
+    if (!lockedHardwareCanvas) {
+      frameAvailable.set(true)
+      bind(if (bindUnit != -1) bindUnit else 0)
+    }
+  }
+
+  private fun createSurface(width: Int, height: Int) {
     release()
+    val surfaceTexture = SurfaceTexture(name).apply {
+      setDefaultBufferSize(width, height)
+      setOnFrameAvailableListener { frameAvailable.set(true) }
+    }
+    this.surfaceTexture = surfaceTexture
+    surface = Surface(surfaceTexture)
+    surfaceWidth = width
+    surfaceHeight = height
   }
 
   fun release() {
-    cachedCanvas = null
+    frameAvailable.set(false)
     surfaceTexture?.release()
     surfaceTexture = null
     surface?.release()
     surface = null
+    surfaceWidth = 0
+    surfaceHeight = 0
+  }
+
+  override fun destroy() {
+    release()
+    super.destroy()
   }
-}
\ No newline at end of file
+}
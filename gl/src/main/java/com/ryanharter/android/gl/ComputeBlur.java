@@ -0,0 +1,116 @@
+package com.ryanharter.android.gl;
+
+import android.os.Build;
+import androidx.annotation.RequiresApi;
+
+import static android.opengl.GLES20.GL_RGBA;
+import static android.opengl.GLES30.GL_RGBA8;
+import static android.opengl.GLES31.GL_FRAMEBUFFER_BARRIER_BIT;
+import static android.opengl.GLES31.GL_TEXTURE_FETCH_BARRIER_BIT;
+import static android.opengl.GLES31.GL_WRITE_ONLY;
+import static android.opengl.GLES31.glBindImageTexture;
+import static android.opengl.GLES31.glDispatchCompute;
+import static android.opengl.GLES31.glMemoryBarrier;
+
+/**
+ * A separable {@link GaussianKernel} blur run as compute shaders, for OpenGL ES 3.1.
+ *
+ * Each work group blurs a run of {@link #TILE} texels along a row or column. The run and the
+ * apron of texels within the radius on either side are fetched into shared memory once, then
+ * every tap reads from there, so the cost per tap doesn't grow with the texture fetches of a
+ * fragment shader.  Results are written with image stores.
+ *
+ * Only textures with immutable `GL_RGBA8` storage can be written, which is what a
+ * {@link WritableTexture} with the default format allocates on OpenGL ES 3.0 and above.
+ */
+@RequiresApi(Build.VERSION_CODES.LOLLIPOP)
+final class ComputeBlur {
+
+  /** The number of texels each work group writes. */
+  static final int TILE = 128;
+  /** The largest kernel radius that fits in the shared memory reserved for the apron. */
+  static final int MAX_RADIUS = 64;
+
+  private static final String COMPUTE_SHADER = ""
+      + "#version 310 es\n"
+      + "#define TILE " + TILE + "\n"
+      + "#define MAX_RADIUS " + MAX_RADIUS + "\n"
+      + "layout(local_size_x = TILE) in;\n"
+      + "layout(binding = 0) uniform highp sampler2D inputImage;\n"
+      + "layout(rgba8, binding = 0) writeonly uniform highp image2D outputImage;\n"
+      + "uniform ivec2 size;\n"
+      + "uniform ivec2 direction;\n"
+      + "uniform int radius;\n"
+      + "uniform float weights[MAX_RADIUS + 1];\n"
+      + "shared vec4 cache[TILE + 2 * MAX_RADIUS];\n"
+      + "void main()\n"
+      + "{\n"
+      + "    ivec2 across = ivec2(1) - direction;\n"
+      + "    int extent = direction.x * size.x + direction.y * size.y;\n"
+      + "    int line = int(gl_WorkGroupID.y);\n"
+      + "    int first = int(gl_WorkGroupID.x) * TILE;\n"
+      + "    int local = int(gl_LocalInvocationID.x);\n"
+      + "    for (int i = local; i < TILE + 2 * radius; i += TILE) {\n"
+      + "        int p = clamp(first - radius + i, 0, extent - 1);\n"
+      + "        cache[i] = texelFetch(inputImage, direction * p + across * line, 0);\n"
+      + "    }\n"
+      + "    barrier();\n"
+      + "    int p = first + local;\n"
+      + "    if (p >= extent) {\n"
+      + "        return;\n"
+      + "    }\n"
+      + "    int c = local + radius;\n"
+      + "    vec4 sum = cache[c] * weights[0];\n"
+      + "    for (int i = 1; i <= radius; i++) {\n"
+      + "        sum += (cache[c - i] + cache[c + i]) * weights[i];\n"
+      + "    }\n"
+      + "    imageStore(outputImage, direction * p + across * line, sum);\n"
+      + "}\n";
+
+  private final Program program;
+
+  ComputeBlur() {
+    program = Program.loadCompute("ComputeBlur", COMPUTE_SHADER);
+  }
+
+  /**
+   * Whether a blur with <code>kernel</code> can be written to a texture with the given format.
+   * The context must also {@link GLState#supportsComputeShaders() support compute shaders}.
+   */
+  static boolean supports(GaussianKernel kernel, int internalFormat, int samples) {
+    return kernel.radius() <= MAX_RADIUS
+        && (internalFormat == GL_RGBA || internalFormat == GL_RGBA8)
+        && samples == 1;
+  }
+
+  boolean isValid() {
+    return program.isValid();
+  }
+
+  /**
+   * Blurs <code>source</code> into <code>target</code> along one axis, horizontally if
+   * <code>horizontal</code> is true, and vertically otherwise.  The textures must be the same
+   * size, and <code>target</code> must not be a framebuffer that's bound.
+   */
+  void pass(GaussianKernel kernel, Texture source, WritableTexture target, int width, int height,
+      boolean horizontal) {
+    program.use();
+    program.bindInt("radius", kernel.radius());
+    program.bindFloatArray("weights", kernel.texelWeights(), kernel.radius() + 1);
+    program.bindInt2("direction", horizontal ? 1 : 0, horizontal ? 0 : 1);
+    program.bindInt2("size", width, height);
+
+    source.bind(0);
+    target.ensureAllocated();
+    glBindImageTexture(0, target.getName(), 0, false, 0, GL_WRITE_ONLY, GL_RGBA8);
+    target.contentsChanged();
+
+    final int length = horizontal ? width : height;
+    final int lines = horizontal ? height : width;
+    glDispatchCompute((length + TILE - 1) / TILE, lines, 1);
+
+    // the result is read by the next pass, or rendered to
+    glMemoryBarrier(GL_TEXTURE_FETCH_BARRIER_BIT | GL_FRAMEBUFFER_BARRIER_BIT);
+    GlUtil.checkError();
+  }
+}
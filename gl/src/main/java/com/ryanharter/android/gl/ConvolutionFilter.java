@@ -0,0 +1,381 @@
+package com.ryanharter.android.gl;
+
+import java.util.List;
+
+import static android.opengl.GLES20.GL_MAX_FRAGMENT_UNIFORM_VECTORS;
+import static android.opengl.GLES20.glGetIntegerv;
+import static android.opengl.GLES30.GL_RGBA16F;
+
+/**
+ * Applies an arbitrary {@link ConvolutionKernel} to a texture.
+ *
+ * The kernel is separated into the fewest rank-1 terms within a tolerance.  Each term is
+ * applied horizontally into a pooled intermediate target, then a single vertical pass reads
+ * every intermediate and sums the terms.  When the kernel has so many terms that reading every
+ * weight is cheaper, it's applied in a single direct pass instead.
+ *
+ * Weights are packed four to a uniform vector.  When the kernel still needs more uniforms than
+ * the GPU has, the pass that fits is used even if it's more expensive, and if neither fits, the
+ * kernel is approximated with as many of its largest terms as fit.
+ *
+ * Intermediate results can be negative, so each is stored scaled into [0, 1] by the range its
+ * row can produce.  On OpenGL ES 3.0 with renderable half floats the intermediates are
+ * <code>GL_RGBA16F</code>, otherwise they have the format of the output, and the precision of
+ * kernels with many terms suffers.
+ */
+public final class ConvolutionFilter {
+
+  /** The most terms a separable filter uses, one texture unit each in the vertical pass. */
+  static final int MAX_TERMS = 8;
+
+  /** The cost, in texture reads per pixel, of writing and reading back an intermediate target. */
+  private static final int PASS_COST = 2;
+
+  private static final String COMPONENTS = "xyzw";
+
+  private static int maxUniformVectors = -1;
+
+  private static final String VERTEX_SHADER = ""
+      + "attribute vec4 vertexAttribPosition;\n"
+      + "varying highp vec2 v_textureCoordinate;\n"
+      + "void main()\n"
+      + "{\n"
+      + "    v_textureCoordinate = vertexAttribPosition.xy * 0.5 + 0.5;\n"
+      + "    gl_Position = vertexAttribPosition;\n"
+      + "}\n";
+
+  private final ConvolutionKernel kernel;
+  private final int terms;
+  private final float[] weights;
+  private final float[][] rows;
+  private final float[] rowOffsets;
+  private final float[] rowScales;
+  private final float[] columns;
+  private final float bias;
+  private final WritableTexture[] intermediates;
+
+  public ConvolutionFilter(ConvolutionKernel kernel) {
+    this(kernel, ConvolutionKernel.DEFAULT_TOLERANCE);
+  }
+
+  /**
+   * @param tolerance The largest error allowed in any weight of the separated kernel.
+   */
+  public ConvolutionFilter(ConvolutionKernel kernel, float tolerance) {
+    this.kernel = kernel;
+    final int width = kernel.width();
+    final int height = kernel.height();
+    final List<ConvolutionKernel.Term> separated = kernel.separate(tolerance);
+    terms = chooseTerms(separated.size(), width, height, maxUniformVectors());
+    if (terms > 0 && terms < separated.size()) {
+      GLState.INSTANCE.getLogger().log("ConvolutionFilter: Only " + terms + " of the "
+          + separated.size() + " terms of the " + width + "x" + height + " kernel fit in the "
+          + "fragment uniforms, the result is approximate.");
+    }
+
+    weights = new float[vectors(width * height) * 4];
+    if (terms == 0) {
+      System.arraycopy(kernel.weights(), 0, weights, 0, width * height);
+    }
+
+    // the column pass reads each intermediate scaled back by the range of its row, which is
+    // folded into the column weights, leaving a constant bias for the offsets
+    rows = new float[terms][];
+    rowOffsets = new float[terms];
+    rowScales = new float[terms];
+    columns = new float[vectors(height * terms) * 4];
+    float bias = 0;
+    for (int i = 0; i < terms; i++) {
+      final ConvolutionKernel.Term term = separated.get(i);
+      rows[i] = new float[vectors(width) * 4];
+      float negative = 0;
+      float positive = 0;
+      for (int x = 0; x < width; x++) {
+        final float weight = term.row(x);
+        rows[i][x] = weight;
+        if (weight < 0) {
+          negative += weight;
+        } else {
+          positive += weight;
+        }
+      }
+      rowOffsets[i] = negative;
+      rowScales[i] = positive > negative ? positive - negative : 1;
+      for (int y = 0; y < height; y++) {
+        columns[i * height + y] = term.column(y) * rowScales[i];
+        bias += term.column(y) * rowOffsets[i];
+      }
+    }
+    this.bias = bias;
+    intermediates = new WritableTexture[terms];
+  }
+
+  /**
+   * Whether applying <code>terms</code> separable terms of a kernel of the given size reads
+   * fewer texels than applying every weight directly.
+   */
+  static boolean separableIsCheaper(int terms, int width, int height) {
+    return terms <= MAX_TERMS && terms * (width + height + PASS_COST) < width * height;
+  }
+
+  /**
+   * Returns the number of separable terms to apply a kernel of the given size with, or 0 to
+   * apply it directly, when the kernel separates into <code>separableTerms</code> terms and
+   * fragment shaders have <code>maxVectors</code> uniform vectors.
+   */
+  static int chooseTerms(int separableTerms, int width, int height, int maxVectors) {
+    final int terms = Math.min(separableTerms, MAX_TERMS);
+    final boolean directFits = directUniformVectors(width, height) <= maxVectors;
+    final boolean separableFits = separableTerms <= MAX_TERMS
+        && columnUniformVectors(height, terms) <= maxVectors;
+    if (separableFits && (!directFits || separableIsCheaper(terms, width, height))) {
+      return terms;
+    }
+    if (directFits) {
+      return 0;
+    }
+
+    // neither fits, so approximate with the largest terms that do
+    int fitting = terms;
+    while (fitting > 1 && columnUniformVectors(height, fitting) > maxVectors) {
+      fitting--;
+    }
+    return fitting;
+  }
+
+  /**
+   * The uniform vectors used by the direct pass, the packed weights and the texel size.
+   */
+  static int directUniformVectors(int width, int height) {
+    return vectors(width * height) + 1;
+  }
+
+  /**
+   * The uniform vectors used by the vertical pass, the packed weights, the texel offset and the
+   * bias.  The horizontal passes use fewer.
+   */
+  static int columnUniformVectors(int height, int terms) {
+    return vectors(height * terms) + 2;
+  }
+
+  private static int vectors(int floats) {
+    return (floats + 3) / 4;
+  }
+
+  private static int maxUniformVectors() {
+    if (maxUniformVectors == -1) {
+      int[] max = new int[1];
+      glGetIntegerv(GL_MAX_FRAGMENT_UNIFORM_VECTORS, max, 0);
+      maxUniformVectors = max[0];
+    }
+    return maxUniformVectors;
+  }
+
+  /**
+   * Whether the kernel is applied as separable passes, rather than a single direct pass.
+   */
+  public boolean isSeparable() {
+    return terms > 0;
+  }
+
+  /**
+   * The number of passes each application renders.
+   */
+  public int passCount() {
+    return terms > 0 ? terms + 1 : 1;
+  }
+
+  /**
+   * Convolves <code>source</code> into <code>output</code>, which must be the same size, taking
+   * intermediate targets from <code>pool</code>.
+   */
+  public void apply(Texture source, WritableTexture output, RenderTargetPool pool) {
+    final int width = output.getWidth();
+    final int height = output.getHeight();
+
+    // there's no blending, and every pass overwrites its whole target
+    GLState.INSTANCE.setBlend(false, false);
+    GLState.INSTANCE.setScissorTest(false);
+
+    if (terms == 0) {
+      final Program program = directProgram();
+      output.bindFramebuffer(WritableTexture.DISCARD_COLOR);
+      program.use();
+      source.bind(0);
+      program.bindInt("inputImageTexture", 0);
+      program.bindFloat2("texelSize", 1f / width, 1f / height);
+      program.bindFloat4Array("weights", weights, vectors(kernel.width() * kernel.height()));
+      GLState.INSTANCE.render();
+      output.unbindFramebuffer(true, WritableTexture.DISCARD_NONE);
+      return;
+    }
+
+    final int format = intermediateFormat(output);
+    try {
+      final Program row = rowProgram();
+      for (int i = 0; i < terms; i++) {
+        intermediates[i] = pool.acquire(width, height, format);
+        intermediates[i].bindFramebuffer(WritableTexture.DISCARD_COLOR);
+        row.use();
+        source.bind(0);
+        row.bindInt("inputImageTexture", 0);
+        row.bindFloat2("texelOffset", 1f / width, 0);
+        row.bindFloat4Array("weights", rows[i], vectors(kernel.width()));
+        row.bindFloat("offset", rowOffsets[i]);
+        row.bindFloat("scale", rowScales[i]);
+        GLState.INSTANCE.render();
+        intermediates[i].unbindFramebuffer(true, WritableTexture.DISCARD_NONE);
+      }
+
+      final Program column = columnProgram();
+      output.bindFramebuffer(WritableTexture.DISCARD_COLOR);
+      column.use();
+      for (int i = 0; i < terms; i++) {
+        intermediates[i].bind(i);
+        column.bindInt("term" + i, i);
+      }
+      column.bindFloat2("texelOffset", 0, 1f / height);
+      column.bindFloat4Array("weights", columns, vectors(kernel.height() * terms));
+      column.bindFloat("bias", bias);
+      GLState.INSTANCE.render();
+      output.unbindFramebuffer(true, WritableTexture.DISCARD_NONE);
+    } finally {
+      for (int i = 0; i < terms; i++) {
+        if (intermediates[i] != null) {
+          pool.release(intermediates[i]);
+          intermediates[i] = null;
+        }
+      }
+    }
+  }
+
+  private static int intermediateFormat(WritableTexture output) {
+    if (GLState.INSTANCE.getGlVersion() == GLState.GLVersion.GLES_30
+        && (GLState.INSTANCE.hasExtension("GL_EXT_color_buffer_half_float")
+        || GLState.INSTANCE.hasExtension("GL_EXT_color_buffer_float"))) {
+      return GL_RGBA16F;
+    }
+    return output.getInternalFormat();
+  }
+
+  private Program directProgram() {
+    final String name = "ConvolutionDirect" + kernel.width() + "x" + kernel.height();
+    Program program = Program.get(name);
+    if (program == null) {
+      program = Program.load(name, VERTEX_SHADER,
+          directShader(kernel.width(), kernel.height()));
+    }
+    return program;
+  }
+
+  private Program rowProgram() {
+    final String name = "ConvolutionRow" + kernel.width();
+    Program program = Program.get(name);
+    if (program == null) {
+      program = Program.load(name, VERTEX_SHADER, rowShader(kernel.width()));
+    }
+    return program;
+  }
+
+  private Program columnProgram() {
+    final String name = "ConvolutionColumn" + kernel.height() + "x" + terms;
+    Program program = Program.get(name);
+    if (program == null) {
+      program = Program.load(name, VERTEX_SHADER, columnShader(kernel.height(), terms));
+    }
+    return program;
+  }
+
+  /**
+   * A single pass reading every weight.  Loops are unrolled so that the packed weights are only
+   * indexed by constants, which is all that OpenGL ES 2.0 guarantees for fragment shaders.
+   */
+  static String directShader(int width, int height) {
+    final StringBuilder s = new StringBuilder()
+        .append("precision highp float;\n")
+        .append("uniform sampler2D inputImageTexture;\n")
+        .append("uniform highp vec2 texelSize;\n")
+        .append("uniform vec4 weights[").append(vectors(width * height)).append("];\n")
+        .append("varying highp vec2 v_textureCoordinate;\n")
+        .append("void main()\n")
+        .append("{\n")
+        .append("    vec4 sum = vec4(0.0);\n");
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        s.append("    sum += texture2D(inputImageTexture, v_textureCoordinate + texelSize * vec2(")
+            .append((float) (x - width / 2)).append(", ").append((float) (y - height / 2))
+            .append(")) * ");
+        appendWeight(s, y * width + x).append(";\n");
+      }
+    }
+    return s.append("    gl_FragColor = sum;\n")
+        .append("}")
+        .toString();
+  }
+
+  /**
+   * The horizontal pass of a single term, which writes its result moved into [0, 1] by
+   * <code>offset</code>, the lowest possible result, and <code>scale</code>, the distance from
+   * there to the highest.
+   */
+  static String rowShader(int width) {
+    final StringBuilder s = new StringBuilder()
+        .append("precision highp float;\n")
+        .append("uniform sampler2D inputImageTexture;\n")
+        .append("uniform highp vec2 texelOffset;\n")
+        .append("uniform vec4 weights[").append(vectors(width)).append("];\n")
+        .append("uniform float offset;\n")
+        .append("uniform float scale;\n")
+        .append("varying highp vec2 v_textureCoordinate;\n")
+        .append("void main()\n")
+        .append("{\n")
+        .append("    vec4 sum = vec4(0.0);\n");
+    for (int i = 0; i < width; i++) {
+      s.append("    sum += texture2D(inputImageTexture, v_textureCoordinate + texelOffset * ")
+          .append((float) (i - width / 2)).append(") * ");
+      appendWeight(s, i).append(";\n");
+    }
+    return s.append("    gl_FragColor = (sum - offset) / scale;\n")
+        .append("}")
+        .toString();
+  }
+
+  /**
+   * The vertical pass, which reads the horizontal result of every term and sums them.  The
+   * weights of each term are pre-multiplied by the scale of its row, and <code>bias</code> adds
+   * back the offsets of every row.
+   */
+  static String columnShader(int height, int terms) {
+    final StringBuilder s = new StringBuilder()
+        .append("precision highp float;\n");
+    for (int i = 0; i < terms; i++) {
+      s.append("uniform sampler2D term").append(i).append(";\n");
+    }
+    s.append("uniform highp vec2 texelOffset;\n")
+        .append("uniform vec4 weights[").append(vectors(height * terms)).append("];\n")
+        .append("uniform float bias;\n")
+        .append("varying highp vec2 v_textureCoordinate;\n")
+        .append("void main()\n")
+        .append("{\n")
+        .append("    vec4 sum = vec4(bias);\n")
+        .append("    highp vec2 uv;\n");
+    for (int y = 0; y < height; y++) {
+      s.append("    uv = v_textureCoordinate + texelOffset * ").append((float) (y - height / 2))
+          .append(";\n");
+      for (int i = 0; i < terms; i++) {
+        s.append("    sum += texture2D(term").append(i).append(", uv) * ");
+        appendWeight(s, i * height + y).append(";\n");
+      }
+    }
+    return s.append("    gl_FragColor = sum;\n")
+        .append("}")
+        .toString();
+  }
+
+  /**
+   * Appends the packed weight at <code>index</code>, as a constant component of a vec4 element.
+   */
+  private static StringBuilder appendWeight(StringBuilder s, int index) {
+    return s.append("weights[").append(index / 4).append("].").append(COMPONENTS.charAt(index % 4));
+  }
+}
@@ -0,0 +1,223 @@
+package com.ryanharter.android.gl;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A two dimensional convolution kernel of up to {@link #MAX_SIZE} by {@link #MAX_SIZE} weights,
+ * and its decomposition into separable terms.
+ *
+ * Any kernel is the sum of rank-1 terms, each the product of a column and a row, found with the
+ * singular value decomposition of the weights.  Each term can be applied as a horizontal pass
+ * followed by a vertical pass, and most useful kernels need only one or two terms, so applying
+ * the terms is usually far cheaper than reading every weight.
+ *
+ * The weight at <code>(x, y)</code> is applied to the texel <code>x - width / 2</code> texels to
+ * the right and <code>y - height / 2</code> texels above the output texel.  The kernel isn't
+ * flipped.
+ */
+public final class ConvolutionKernel {
+
+  /** The largest width or height of a kernel. */
+  public static final int MAX_SIZE = 9;
+
+  /** The default largest error of any weight of the separable terms. */
+  public static final float DEFAULT_TOLERANCE = 1e-3f;
+
+  private static final int MAX_SWEEPS = 30;
+
+  private final int width;
+  private final int height;
+  private final float[] weights;
+  private List<Term> terms;
+
+  private ConvolutionKernel(int width, int height, float[] weights) {
+    this.width = width;
+    this.height = height;
+    this.weights = weights;
+  }
+
+  /**
+   * Creates a kernel from <code>weights</code>, in rows of <code>width</code> weights from the
+   * bottom row up.
+   */
+  public static ConvolutionKernel create(int width, int height, float... weights) {
+    if (width < 1 || height < 1 || width > MAX_SIZE || height > MAX_SIZE) {
+      throw new IllegalArgumentException(
+          "Kernels must be from 1x1 to " + MAX_SIZE + "x" + MAX_SIZE + ", was " + width + "x"
+              + height);
+    }
+    if (weights.length != width * height) {
+      throw new IllegalArgumentException(
+          "Expected " + width * height + " weights, was " + weights.length);
+    }
+    return new ConvolutionKernel(width, height, weights.clone());
+  }
+
+  public int width() {
+    return width;
+  }
+
+  public int height() {
+    return height;
+  }
+
+  public float weight(int x, int y) {
+    return weights[y * width + x];
+  }
+
+  float[] weights() {
+    return weights;
+  }
+
+  /**
+   * Returns the fewest separable terms whose sum matches every weight of this kernel to within
+   * <code>tolerance</code>, largest first.
+   */
+  public List<Term> separate(float tolerance) {
+    final List<Term> all = terms();
+    final float[] sum = new float[weights.length];
+    for (int count = 0; count <= all.size(); count++) {
+      if (maxError(sum) <= tolerance) {
+        return all.subList(0, count);
+      }
+      if (count < all.size()) {
+        all.get(count).addTo(sum);
+      }
+    }
+    return all;
+  }
+
+  private float maxError(float[] sum) {
+    float max = 0;
+    for (int i = 0; i < weights.length; i++) {
+      max = Math.max(max, Math.abs(weights[i] - sum[i]));
+    }
+    return max;
+  }
+
+  /**
+   * Returns every nonzero term of the singular value decomposition, largest first.
+   */
+  private List<Term> terms() {
+    if (terms != null) {
+      return terms;
+    }
+
+    // one-sided Jacobi: rotate pairs of columns until they're all orthogonal, accumulating the
+    // rotations in v, so that a = u * v^T with the columns of u scaled by the singular values
+    final double[][] u = new double[width][height];
+    final double[][] v = new double[width][width];
+    for (int x = 0; x < width; x++) {
+      for (int y = 0; y < height; y++) {
+        u[x][y] = weights[y * width + x];
+      }
+      v[x][x] = 1;
+    }
+
+    for (int sweep = 0; sweep < MAX_SWEEPS; sweep++) {
+      boolean rotated = false;
+      for (int p = 0; p < width - 1; p++) {
+        for (int q = p + 1; q < width; q++) {
+          final double alpha = dot(u[p], u[p]);
+          final double beta = dot(u[q], u[q]);
+          final double gamma = dot(u[p], u[q]);
+          if (gamma == 0 || Math.abs(gamma) <= 1e-15 * Math.sqrt(alpha * beta)) {
+            continue;
+          }
+          rotated = true;
+          final double zeta = (beta - alpha) / (2 * gamma);
+          final double t = (zeta >= 0 ? 1 : -1) / (Math.abs(zeta) + Math.sqrt(1 + zeta * zeta));
+          final double c = 1 / Math.sqrt(1 + t * t);
+          final double s = c * t;
+          rotate(u[p], u[q], c, s);
+          rotate(v[p], v[q], c, s);
+        }
+      }
+      if (!rotated) {
+        break;
+      }
+    }
+
+    final List<Term> result = new ArrayList<>(width);
+    for (int x = 0; x < width; x++) {
+      final double sigma = Math.sqrt(dot(u[x], u[x]));
+      if (sigma <= 1e-9) {
+        continue;
+      }
+      // split the singular value between the two vectors, which keeps both in a similar range
+      final double scale = Math.sqrt(sigma);
+      final float[] column = new float[height];
+      for (int y = 0; y < height; y++) {
+        column[y] = (float) (u[x][y] / sigma * scale);
+      }
+      final float[] row = new float[width];
+      for (int i = 0; i < width; i++) {
+        row[i] = (float) (v[x][i] * scale);
+      }
+      result.add(new Term((float) sigma, row, column));
+    }
+    Collections.sort(result, (a, b) -> Float.compare(b.singularValue, a.singularValue));
+    terms = Collections.unmodifiableList(result);
+    return terms;
+  }
+
+  private static double dot(double[] a, double[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += a[i] * b[i];
+    }
+    return sum;
+  }
+
+  private static void rotate(double[] a, double[] b, double c, double s) {
+    for (int i = 0; i < a.length; i++) {
+      final double x = a[i];
+      final double y = b[i];
+      a[i] = c * x - s * y;
+      b[i] = s * x + c * y;
+    }
+  }
+
+  /**
+   * A separable term of a kernel, which weights the texel at <code>(x, y)</code> by
+   * <code>row(x) * column(y)</code>.
+   */
+  public static final class Term {
+
+    private final float singularValue;
+    private final float[] row;
+    private final float[] column;
+
+    Term(float singularValue, float[] row, float[] column) {
+      this.singularValue = singularValue;
+      this.row = row;
+      this.column = column;
+    }
+
+    public float row(int x) {
+      return row[x];
+    }
+
+    public float column(int y) {
+      return column[y];
+    }
+
+    float[] row() {
+      return row;
+    }
+
+    float[] column() {
+      return column;
+    }
+
+    private void addTo(float[] sum) {
+      for (int y = 0; y < column.length; y++) {
+        for (int x = 0; x < row.length; x++) {
+          sum[y * row.length + x] += row[x] * column[y];
+        }
+      }
+    }
+  }
+}
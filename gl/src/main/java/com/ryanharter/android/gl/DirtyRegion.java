@@ -0,0 +1,235 @@
+package com.ryanharter.android.gl;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates damaged rectangles and coalesces them into a small set of rectangles
+ * to be processed, such as uploads or re-renders.
+ *
+ * Two rectangles are merged when the area wasted by their union is smaller than
+ * <code>mergeThreshold</code>, which approximates the fixed cost of processing an extra
+ * rectangle in pixels.  Rectangles that intersect are always merged, so the rectangles never
+ * overlap and no pixel is processed twice.  If the region still holds more than
+ * <code>maxRects</code> rectangles, the pair that wastes the least area is merged.
+ *
+ * Rectangles are stored as <code>[left, top, right, bottom)</code>.
+ */
+public final class DirtyRegion {
+
+  private static final int DEFAULT_MAX_RECTS = 8;
+  private static final int DEFAULT_MERGE_THRESHOLD = 64 * 64;
+
+  private final int maxRects;
+  private final int mergeThreshold;
+  private int[] rects;
+  private int count;
+
+  public DirtyRegion() {
+    this(DEFAULT_MAX_RECTS, DEFAULT_MERGE_THRESHOLD);
+  }
+
+  public DirtyRegion(int maxRects, int mergeThreshold) {
+    if (maxRects < 1) {
+      throw new IllegalArgumentException("maxRects must be at least 1.");
+    }
+    this.maxRects = maxRects;
+    this.mergeThreshold = mergeThreshold;
+    this.rects = new int[4 * (maxRects + 1)];
+  }
+
+  /**
+   * Adds the rectangle to the region.  Empty rectangles are ignored.
+   */
+  public void add(int left, int top, int right, int bottom) {
+    if (left >= right || top >= bottom) {
+      return;
+    }
+
+    // merge with everything it overlaps or nearly touches, restarting whenever the rect grows
+    boolean merged = true;
+    while (merged) {
+      merged = false;
+      for (int i = 0; i < count; i++) {
+        int o = i * 4;
+        int ul = Math.min(left, rects[o]);
+        int ut = Math.min(top, rects[o + 1]);
+        int ur = Math.max(right, rects[o + 2]);
+        int ub = Math.max(bottom, rects[o + 3]);
+        long overlap = area(Math.max(left, rects[o]), Math.max(top, rects[o + 1]),
+            Math.min(right, rects[o + 2]), Math.min(bottom, rects[o + 3]));
+        long waste = area(ul, ut, ur, ub) - (area(left, top, right, bottom) + area(i) - overlap);
+        if (overlap > 0 || waste <= mergeThreshold) {
+          remove(i);
+          left = ul;
+          top = ut;
+          right = ur;
+          bottom = ub;
+          merged = true;
+          break;
+        }
+      }
+    }
+
+    append(left, top, right, bottom);
+
+    while (count > maxRects) {
+      mergeCheapestPair();
+    }
+  }
+
+  /**
+   * Adds all of the rectangles in <code>other</code> to this region.
+   */
+  public void add(DirtyRegion other) {
+    for (int i = 0; i < other.count; i++) {
+      int o = i * 4;
+      add(other.rects[o], other.rects[o + 1], other.rects[o + 2], other.rects[o + 3]);
+    }
+  }
+
+  /**
+   * Grows every rectangle by <code>amount</code> on each side, then clips the result to
+   * <code>[0, 0, width, height)</code>.
+   */
+  public void expand(int amount, int width, int height) {
+    if (count == 0) {
+      return;
+    }
+    int[] old = Arrays.copyOf(rects, count * 4);
+    int oldCount = count;
+    count = 0;
+    for (int i = 0; i < oldCount; i++) {
+      int o = i * 4;
+      add(Math.max(0, old[o] - amount), Math.max(0, old[o + 1] - amount),
+          Math.min(width, old[o + 2] + amount), Math.min(height, old[o + 3] + amount));
+    }
+  }
+
+  public void clear() {
+    count = 0;
+  }
+
+  public boolean isEmpty() {
+    return count == 0;
+  }
+
+  /**
+   * Returns the number of rectangles in the region.
+   */
+  public int size() {
+    return count;
+  }
+
+  public int left(int index) {
+    return rects[index * 4];
+  }
+
+  public int top(int index) {
+    return rects[index * 4 + 1];
+  }
+
+  public int right(int index) {
+    return rects[index * 4 + 2];
+  }
+
+  public int bottom(int index) {
+    return rects[index * 4 + 3];
+  }
+
+  /**
+   * Writes the bounds of the whole region to <code>out</code> as
+   * <code>[left, top, right, bottom]</code>.
+   *
+   * @return false if the region is empty.
+   */
+  public boolean getBounds(int[] out) {
+    if (count == 0) {
+      return false;
+    }
+    out[0] = rects[0];
+    out[1] = rects[1];
+    out[2] = rects[2];
+    out[3] = rects[3];
+    for (int i = 1; i < count; i++) {
+      int o = i * 4;
+      out[0] = Math.min(out[0], rects[o]);
+      out[1] = Math.min(out[1], rects[o + 1]);
+      out[2] = Math.max(out[2], rects[o + 2]);
+      out[3] = Math.max(out[3], rects[o + 3]);
+    }
+    return true;
+  }
+
+  private void mergeCheapestPair() {
+    int bestA = 0, bestB = 1;
+    long bestWaste = Long.MAX_VALUE;
+    for (int a = 0; a < count; a++) {
+      for (int b = a + 1; b < count; b++) {
+        long waste = unionArea(a, b) - (area(a) + area(b) - intersectionArea(a, b));
+        if (waste < bestWaste) {
+          bestWaste = waste;
+          bestA = a;
+          bestB = b;
+        }
+      }
+    }
+
+    int oa = bestA * 4, ob = bestB * 4;
+    int l = Math.min(rects[oa], rects[ob]);
+    int t = Math.min(rects[oa + 1], rects[ob + 1]);
+    int r = Math.max(rects[oa + 2], rects[ob + 2]);
+    int b = Math.max(rects[oa + 3], rects[ob + 3]);
+    // remove the higher index first so the lower one stays valid
+    remove(bestB);
+    remove(bestA);
+    add(l, t, r, b);
+  }
+
+  private void append(int left, int top, int right, int bottom) {
+    if (rects.length < (count + 1) * 4) {
+      rects = Arrays.copyOf(rects, rects.length * 2);
+    }
+    int o = count * 4;
+    rects[o] = left;
+    rects[o + 1] = top;
+    rects[o + 2] = right;
+    rects[o + 3] = bottom;
+    count++;
+  }
+
+  private void remove(int index) {
+    int last = (count - 1) * 4;
+    if (index * 4 != last) {
+      System.arraycopy(rects, last, rects, index * 4, 4);
+    }
+    count--;
+  }
+
+  private long area(int index) {
+    int o = index * 4;
+    return area(rects[o], rects[o + 1], rects[o + 2], rects[o + 3]);
+  }
+
+  private long unionArea(int a, int b) {
+    int oa = a * 4, ob = b * 4;
+    return area(Math.min(rects[oa], rects[ob]), Math.min(rects[oa + 1], rects[ob + 1]),
+        Math.max(rects[oa + 2], rects[ob + 2]), Math.max(rects[oa + 3], rects[ob + 3]));
+  }
+
+  private long intersectionArea(int a, int b) {
+    int oa = a * 4, ob = b * 4;
+    return area(Math.max(rects[oa], rects[ob]), Math.max(rects[oa + 1], rects[ob + 1]),
+        Math.min(rects[oa + 2], rects[ob + 2]), Math.min(rects[oa + 3], rects[ob + 3]));
+  }
+
+  /**
+   * The area of the rect, or 0 if it's empty, which is the case for the intersection of
+   * rects that don't overlap.
+   */
+  private static long area(int left, int top, int right, int bottom) {
+    if (left >= right || top >= bottom) {
+      return 0;
+    }
+    return (long) (right - left) * (bottom - top);
+  }
+}
@@ -4,6 +4,28 @@ public final class GLES2Fix {
 
   public static native void glReadPixelsPBO(int x, int y, int width, int height, int format, int type, int offset);
 
+  public static native void glTexSubImage2DPBO(int target, int level, int xoffset, int yoffset, int width, int height, int format, int type, int offset);
+
+  /**
+   * Calls <code>glDiscardFramebufferEXT</code> from <code>GL_EXT_discard_framebuffer</code>,
+   * which has no Java binding.  Does nothing if the driver doesn't provide the function.
+   */
+  public static native void glDiscardFramebufferEXT(int target, int count, int[] attachments, int offset);
+
+  /**
+   * Calls <code>glFramebufferTexture2DMultisampleEXT</code> from
+   * <code>GL_EXT_multisampled_render_to_texture</code>.  Does nothing if the driver doesn't
+   * provide the function.
+   */
+  public static native void glFramebufferTexture2DMultisampleEXT(int target, int attachment, int textarget, int texture, int level, int samples);
+
+  /**
+   * Calls <code>glRenderbufferStorageMultisampleEXT</code> from
+   * <code>GL_EXT_multisampled_render_to_texture</code>.  Does nothing if the driver doesn't
+   * provide the function.
+   */
+  public static native void glRenderbufferStorageMultisampleEXT(int target, int samples, int internalformat, int width, int height);
+
   static {
     System.loadLibrary("glhelper");
   }
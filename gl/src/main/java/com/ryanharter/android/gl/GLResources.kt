@@ -0,0 +1,250 @@
+package com.ryanharter.android.gl
+
+import android.opengl.GLES20.glBindBuffer
+import android.opengl.GLES20.glBufferData
+import android.opengl.GLES20.glDeleteBuffers
+import android.opengl.GLES20.glDeleteFramebuffers
+import android.opengl.GLES20.glDeleteRenderbuffers
+import android.opengl.GLES20.glDeleteTextures
+import android.opengl.GLES20.glGenBuffers
+import android.opengl.GLES20.glGenFramebuffers
+import android.opengl.GLES20.glGenRenderbuffers
+import android.opengl.GLES20.glGenTextures
+import android.opengl.GLES30.GL_COPY_WRITE_BUFFER
+import android.opengl.GLES30.GL_STREAM_DRAW
+import android.opengl.GLES30.glDeleteSamplers
+import android.opengl.GLES30.glGenSamplers
+import java.io.PrintWriter
+import java.io.StringWriter
+import java.lang.ref.PhantomReference
+import java.lang.ref.ReferenceQueue
+
+/**
+ * Keeps track of the GL objects created by this library so that they can be deleted in
+ * batches, and so that objects which are garbage collected without being destroyed can
+ * be reported and reclaimed.
+ *
+ * Names are also allocated here, in blocks of [BLOCK_SIZE] per `glGen*` call, so that
+ * creating many objects doesn't cost a JNI call and an array allocation each.
+ *
+ * All methods must be called on the GL thread.
+ */
+object GLResources {
+
+  const val TEXTURE = 0
+  const val FRAMEBUFFER = 1
+  const val RENDERBUFFER = 2
+  const val BUFFER = 3
+  const val SAMPLER = 4
+  private const val TYPE_COUNT = 5
+
+  private const val BLOCK_SIZE = 32
+
+  /**
+   * When true, deleted objects are queued and only released to GL, with a single
+   * `glDelete*` call per type, when [flush] is called. Call [flush] at a safe point in the
+   * frame, like after all rendering has been submitted.
+   *
+   * When false, the default, objects are deleted immediately.
+   */
+  @JvmStatic
+  var deferDeletion = false
+
+  /**
+   * Whether to record where each object was created, which is included when reporting
+   * leaks. Defaults to true in debug builds.
+   */
+  @JvmStatic
+  var captureStackTraces = BuildConfig.DEBUG
+
+  /**
+   * When true, the names of released objects that carry no state the next owner doesn't
+   * overwrite are kept and handed out again by [generate], instead of being deleted.
+   * This applies to samplers and, on OpenGL ES 3.0, to buffers, whose storage is
+   * orphaned when they're recycled.
+   */
+  @JvmStatic
+  var recycleNames = false
+
+  /**
+   * A tracked GL object. Hand this back to [release] when the owner is destroyed.
+   */
+  class Resource internal constructor(
+    owner: Any,
+    val type: Int,
+    val name: Int,
+    internal val origin: Throwable?
+  ) : PhantomReference<Any>(owner, queue)
+
+  private val queue = ReferenceQueue<Any>()
+  private val live = HashSet<Resource>()
+  private val pending = Array(TYPE_COUNT) { IntArray(16) }
+  private val pendingCount = IntArray(TYPE_COUNT)
+  private val single = IntArray(1)
+  private val free = Array(TYPE_COUNT) { IntArray(BLOCK_SIZE) }
+  private val freeCount = IntArray(TYPE_COUNT)
+
+  /**
+   * Returns an unused name for an object of [type], generating a new block of names if
+   * none are left.
+   */
+  @JvmStatic
+  fun generate(type: Int): Int {
+    var count = freeCount[type]
+    if (count == 0) {
+      glGen(type, BLOCK_SIZE, free[type])
+      count = BLOCK_SIZE
+    }
+    count--
+    freeCount[type] = count
+    return free[type][count]
+  }
+
+  /**
+   * Generates a name for an object of [type] and starts tracking it.
+   *
+   * @see generate
+   * @see track
+   */
+  @JvmStatic
+  fun create(owner: Any, type: Int): Resource = track(owner, type, generate(type))
+
+  /**
+   * Starts tracking the object [name] of [type], owned by [owner]. If [owner] is garbage
+   * collected before the returned resource is released, the object will be reported as
+   * leaked and deleted.
+   */
+  @JvmStatic
+  fun track(owner: Any, type: Int, name: Int): Resource {
+    reclaimLeaks()
+    val origin = if (captureStackTraces) Throwable("${typeName(type)} $name created here") else null
+    return Resource(owner, type, name, origin).also { live.add(it) }
+  }
+
+  /**
+   * Stops tracking [resource] and deletes the object. Releasing a resource more than once
+   * has no effect.
+   */
+  @JvmStatic
+  fun release(resource: Resource?) {
+    if (resource != null && live.remove(resource)) {
+      resource.clear()
+      delete(resource.type, resource.name)
+    }
+  }
+
+  /**
+   * Deletes all objects queued while [deferDeletion] is enabled, and any leaked objects
+   * that have been collected.
+   */
+  @JvmStatic
+  fun flush() {
+    reclaimLeaks()
+    for (type in 0 until TYPE_COUNT) {
+      val count = pendingCount[type]
+      if (count > 0) {
+        glDelete(type, count, pending[type])
+        pendingCount[type] = 0
+      }
+    }
+  }
+
+  /**
+   * Forgets all tracked and pending objects, since they died with the old context.
+   */
+  internal fun reset() {
+    live.forEach { it.clear() }
+    live.clear()
+    while (queue.poll() != null) {
+      // drain
+    }
+    pendingCount.fill(0)
+    freeCount.fill(0)
+  }
+
+  private fun delete(type: Int, name: Int) {
+    if (recycleNames && recycle(type, name)) {
+      return
+    }
+    if (deferDeletion) {
+      var names = pending[type]
+      val count = pendingCount[type]
+      if (count == names.size) {
+        names = names.copyOf(count * 2)
+        pending[type] = names
+      }
+      names[count] = name
+      pendingCount[type] = count + 1
+    } else {
+      single[0] = name
+      glDelete(type, 1, single)
+    }
+  }
+
+  private fun recycle(type: Int, name: Int): Boolean {
+    when (type) {
+      SAMPLER -> Unit
+      BUFFER -> {
+        if (GLState.getGlVersion() != GLState.GLVersion.GLES_30) {
+          return false
+        }
+        // drop the storage, the next owner will specify its own
+        glBindBuffer(GL_COPY_WRITE_BUFFER, name)
+        glBufferData(GL_COPY_WRITE_BUFFER, 0, null, GL_STREAM_DRAW)
+        glBindBuffer(GL_COPY_WRITE_BUFFER, 0)
+      }
+      else -> return false
+    }
+
+    var names = free[type]
+    val count = freeCount[type]
+    if (count == names.size) {
+      names = names.copyOf(count * 2)
+      free[type] = names
+    }
+    names[count] = name
+    freeCount[type] = count + 1
+    return true
+  }
+
+  private fun reclaimLeaks() {
+    while (true) {
+      val resource = queue.poll() as Resource? ?: return
+      if (live.remove(resource)) {
+        GLState.logger.log("Leaked ${typeName(resource.type)} ${resource.name}: its owner was " +
+          "garbage collected without being destroyed.${resource.origin?.let { "\n" + it.stackTraceString() } ?: ""}")
+        delete(resource.type, resource.name)
+      }
+    }
+  }
+
+  private fun glDelete(type: Int, count: Int, names: IntArray) = when (type) {
+    TEXTURE -> glDeleteTextures(count, names, 0)
+    FRAMEBUFFER -> glDeleteFramebuffers(count, names, 0)
+    RENDERBUFFER -> glDeleteRenderbuffers(count, names, 0)
+    BUFFER -> glDeleteBuffers(count, names, 0)
+    SAMPLER -> glDeleteSamplers(count, names, 0)
+    else -> throw IllegalArgumentException("Unknown resource type $type")
+  }
+
+  private fun glGen(type: Int, count: Int, names: IntArray) = when (type) {
+    TEXTURE -> glGenTextures(count, names, 0)
+    FRAMEBUFFER -> glGenFramebuffers(count, names, 0)
+    RENDERBUFFER -> glGenRenderbuffers(count, names, 0)
+    BUFFER -> glGenBuffers(count, names, 0)
+    SAMPLER -> glGenSamplers(count, names, 0)
+    else -> throw IllegalArgumentException("Unknown resource type $type")
+  }
+
+  private fun typeName(type: Int) = when (type) {
+    TEXTURE -> "texture"
+    FRAMEBUFFER -> "framebuffer"
+    RENDERBUFFER -> "renderbuffer"
+    BUFFER -> "buffer"
+    SAMPLER -> "sampler"
+    else -> "object"
+  }
+
+  private fun Throwable.stackTraceString() =
+    StringWriter().also { printStackTrace(PrintWriter(it)) }.toString()
+}
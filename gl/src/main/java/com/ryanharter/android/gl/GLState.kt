@@ -4,6 +4,7 @@ import android.opengl.GLES11Ext.GL_TEXTURE_EXTERNAL_OES
 import android.opengl.GLES20
 import android.opengl.GLES20.*
 import android.opengl.GLES30.glBindVertexArray
+import android.opengl.GLES30.glInvalidateFramebuffer
 import android.os.Build
 import android.util.SparseArray
 import android.util.SparseBooleanArray
@@ -29,8 +30,10 @@ object GLState {
   private val renderer = GLES2Renderer()
 
   private var glVersion = GLVersion.GL_UNKNOWN
+  private var glVersionNumber = -1
   private var glExtensions = ""
   private var maxTextureSize = -1
+  private var discardMode = DISCARD_UNKNOWN
   private var blend = false
   private var program = -1
   private var textureUnit = -1
@@ -39,6 +42,8 @@ object GLState {
   private var elementArrayBuffer = -1
   private var vertexArray = -1
   private val viewport = IntArray(4)
+  private var scissorTest = false
+  private val scissor = intArrayOf(-1, -1, -1, -1)
   private val textures = SparseArray<SparseIntArray>()
   private val attributes = SparseBooleanArray()
   private val resetListeners = mutableSetOf<() -> Unit>()
@@ -56,6 +61,11 @@ object GLState {
       return _bugs!!
     }
 
+  private const val DISCARD_UNKNOWN = -1
+  private const val DISCARD_NONE = 0
+  private const val DISCARD_INVALIDATE = 1
+  private const val DISCARD_EXT = 2
+
   fun addResetListener(l: () -> Unit) {
     resetListeners.add(l)
   }
@@ -70,18 +80,33 @@ object GLState {
 
   fun getGlVersion(): GLVersion {
     if (glVersion == GLVersion.GL_UNKNOWN) {
-      val version = GLES20.glGetString(GL_VERSION)
-      return if (version != null && version.startsWith("OpenGL ES 2.")) {
-        GLVersion.GLES_20
-      } else if (version != null && version.startsWith("OpenGL ES 3.")) {
-        GLVersion.GLES_30
-      } else {
-        GLVersion.GL_UNKNOWN
+      glVersion = when (getGlVersionNumber() / 10) {
+        2 -> GLVersion.GLES_20
+        3 -> GLVersion.GLES_30
+        else -> GLVersion.GL_UNKNOWN
       }
     }
     return glVersion
   }
 
+  /**
+   * Returns the OpenGL ES version of the context as `major * 10 + minor`, like 31 for OpenGL ES
+   * 3.1, or 0 if it's unknown.
+   */
+  fun getGlVersionNumber(): Int {
+    if (glVersionNumber <= 0) {
+      glVersionNumber = parseGlVersion(GLES20.glGetString(GL_VERSION))
+    }
+    return glVersionNumber
+  }
+
+  /**
+   * Whether compute shaders and image load/store are available, which requires an OpenGL ES 3.1
+   * context.
+   */
+  fun supportsComputeShaders(): Boolean =
+    Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && getGlVersionNumber() >= 31
+
   fun hasExtension(name: String): Boolean {
     if (glExtensions.isEmpty()) {
       glExtensions = glGetString(GL_EXTENSIONS)
@@ -123,11 +148,43 @@ object GLState {
     glViewport(x, y, w, h)
   }
 
+  fun setScissorTest(enabled: Boolean) {
+    if (enabled != scissorTest) {
+      if (enabled) {
+        glEnable(GL_SCISSOR_TEST)
+      } else {
+        glDisable(GL_SCISSOR_TEST)
+      }
+      scissorTest = enabled
+    }
+  }
+
+  fun setScissor(x: Int, y: Int, w: Int, h: Int) {
+    if (scissor[0] != x || scissor[1] != y || scissor[2] != w || scissor[3] != h) {
+      scissor[0] = x
+      scissor[1] = y
+      scissor[2] = w
+      scissor[3] = h
+      glScissor(x, y, w, h)
+    }
+  }
+
+  /**
+   * Enables the scissor test, limited to the rectangle at [index] in [region].
+   */
+  fun setScissor(region: DirtyRegion, index: Int) {
+    setScissorTest(true)
+    setScissor(region.left(index), region.top(index),
+      region.right(index) - region.left(index), region.bottom(index) - region.top(index))
+  }
+
   fun reset() {
     logger.log("Resetting state.")
     glVersion = GLVersion.GL_UNKNOWN
+    glVersionNumber = -1
     _bugs = null
     maxTextureSize = -1
+    discardMode = DISCARD_UNKNOWN
     blend = false
     program = -1
     textureUnit = -1
@@ -138,7 +195,11 @@ object GLState {
     textures.clear()
     attributes.clear()
     Arrays.fill(viewport, 0)
+    scissorTest = false
+    Arrays.fill(scissor, -1)
     Program.programs.clear()
+    GLResources.reset()
+    SharedRenderbuffers.reset()
     resetListeners.forEach { it() }
   }
 
@@ -176,6 +237,17 @@ object GLState {
     }
   }
 
+  /**
+   * Returns the bound framebuffer, which is only queried from GL if it isn't known yet.
+   */
+  fun getFramebuffer(): Int {
+    if (framebuffer == -1) {
+      glGetIntegerv(GL_FRAMEBUFFER_BINDING, tempInt, 0)
+      framebuffer = tempInt[0]
+    }
+    return framebuffer
+  }
+
   fun bindFramebuffer(framebuffer: Int) {
     if (GLState.framebuffer != framebuffer) {
       glBindFramebuffer(GL_FRAMEBUFFER, framebuffer)
@@ -183,6 +255,29 @@ object GLState {
     }
   }
 
+  /**
+   * Tells the driver that the contents of the first [count] [attachments] of the bound
+   * framebuffer are no longer needed, so that tile-based GPUs can skip loading them before
+   * rendering, or writing them back to memory afterwards.
+   *
+   * Uses `glInvalidateFramebuffer` on OpenGL ES 3.0 and `GL_EXT_discard_framebuffer` on
+   * OpenGL ES 2.0, and does nothing if neither is available.
+   */
+  @JvmOverloads
+  fun invalidateFramebuffer(attachments: IntArray, count: Int = attachments.size) {
+    if (discardMode == DISCARD_UNKNOWN) {
+      discardMode = when {
+        getGlVersion() == GLVersion.GLES_30 -> DISCARD_INVALIDATE
+        hasExtension("GL_EXT_discard_framebuffer") -> DISCARD_EXT
+        else -> DISCARD_NONE
+      }
+    }
+    when (discardMode) {
+      DISCARD_INVALIDATE -> glInvalidateFramebuffer(GL_FRAMEBUFFER, count, attachments, 0)
+      DISCARD_EXT -> GLES2Fix.glDiscardFramebufferEXT(GL_FRAMEBUFFER, count, attachments, 0)
+    }
+  }
+
   fun setBlend(blend: Boolean, translucent: Boolean) {
     if (blend != GLState.blend) {
       if (blend) {
@@ -238,3 +333,19 @@ object GLState {
     return false
   }
 }
+
+/**
+ * Parses a `GL_VERSION` string, like `OpenGL ES 3.1 v1.r12p0`, into `major * 10 + minor`, or
+ * returns 0 if it isn't an OpenGL ES version.
+ */
+internal fun parseGlVersion(version: String?): Int {
+  if (version == null || !version.startsWith("OpenGL ES ")) {
+    return 0
+  }
+  val start = "OpenGL ES ".length
+  if (version.length < start + 3 || version[start + 1] != '.' ||
+    !version[start].isDigit() || !version[start + 2].isDigit()) {
+    return 0
+  }
+  return (version[start] - '0') * 10 + (version[start + 2] - '0')
+}
@@ -0,0 +1,175 @@
+package com.ryanharter.android.gl;
+
+import static android.opengl.GLES20.GL_MAX_FRAGMENT_UNIFORM_VECTORS;
+import static android.opengl.GLES20.GL_MAX_VARYING_VECTORS;
+import static android.opengl.GLES20.GL_MAX_VERTEX_UNIFORM_VECTORS;
+import static android.opengl.GLES20.glGetIntegerv;
+
+/**
+ * A single direction pass of a {@link GaussianKernel}, generated for the kernel's tap count.
+ *
+ * Tap coordinates are computed in the vertex shader and passed as varyings, two taps to a
+ * <code>vec4</code>, so that the fragment shader's texture reads aren't dependent on arithmetic.
+ * Taps that don't fit in the available varyings are computed in the fragment shader instead.
+ *
+ * Shaders use the <code>SAMPLE_TYPE</code> and <code>CHANNELS</code> defines of
+ * {@link BlurableTexture#channelDefines(boolean)}, so that single channel textures only read
+ * and write red.
+ *
+ * Programs are generated once per tap count, and share the program cache, so kernels of any
+ * sigma with the same tap count use the same program with different uniforms.
+ */
+final class GaussianBlurProgram implements BlurableTexture.BlurProgram {
+
+  private static int maxVaryingTaps = -1;
+  private static int maxTaps = -1;
+
+  private final int taps;
+  private final int varyingTaps;
+  private final boolean singleChannel;
+  private final String name;
+  private GaussianKernel kernel;
+
+  private GaussianBlurProgram(int taps, int varyingTaps, boolean singleChannel) {
+    this.taps = taps;
+    this.varyingTaps = varyingTaps;
+    this.singleChannel = singleChannel;
+    this.name = "GaussianBlur" + taps + "x" + varyingTaps + (singleChannel ? "R" : "");
+  }
+
+  /**
+   * Returns the program for <code>kernel</code>, reading and writing only the red channel if
+   * <code>singleChannel</code> is true, and reusing <code>current</code> if it's the same.
+   */
+  static GaussianBlurProgram forKernel(GaussianKernel kernel, boolean singleChannel,
+      GaussianBlurProgram current) {
+    GaussianBlurProgram program = current;
+    if (program == null || program.taps != kernel.tapCount()
+        || program.singleChannel != singleChannel) {
+      program = new GaussianBlurProgram(kernel.tapCount(),
+          Math.min(kernel.tapCount(), maxVaryingTaps()), singleChannel);
+    }
+    program.kernel = kernel;
+    return program;
+  }
+
+  private static int maxVaryingTaps() {
+    if (maxVaryingTaps == -1) {
+      int[] max = new int[1];
+      glGetIntegerv(GL_MAX_VARYING_VECTORS, max, 0);
+      // one vector holds the center coordinate
+      maxVaryingTaps = Math.max(0, max[0] - 1);
+    }
+    return maxVaryingTaps;
+  }
+
+  /**
+   * Returns the most taps a program can have within the uniform limits of this GPU, beyond
+   * which it would fail to link.
+   */
+  static int maxTaps() {
+    if (maxTaps == -1) {
+      int[] max = new int[2];
+      glGetIntegerv(GL_MAX_FRAGMENT_UNIFORM_VECTORS, max, 0);
+      glGetIntegerv(GL_MAX_VERTEX_UNIFORM_VECTORS, max, 1);
+      maxTaps = maxTaps(max[0], max[1]);
+    }
+    return maxTaps;
+  }
+
+  /**
+   * Returns the most taps that fit in the given numbers of uniform vectors, assuming the worst
+   * case packing of one array element per vector.
+   */
+  static int maxTaps(int fragmentVectors, int vertexVectors) {
+    // the fragment shader has weights[taps + 1], offsets[taps + 1] and texelOffset, the vertex
+    // shader offsets[taps + 1] and texelOffset
+    final int fragment = (fragmentVectors - 1) / 2 - 1;
+    final int vertex = vertexVectors - 2;
+    return Math.max(0, Math.min(fragment, vertex));
+  }
+
+  @Override public Program program() {
+    Program program = Program.get(name);
+    if (program == null) {
+      program = Program.load(name, vertexShader(taps, varyingTaps),
+          fragmentShader(taps, varyingTaps), BlurableTexture.channelDefines(singleChannel));
+    }
+    return program;
+  }
+
+  @Override public void bindImage(int texture) {
+    program().bindInt("inputImageTexture", texture);
+  }
+
+  /**
+   * Binds the offset of a single texel in the direction of the blur, and the kernel.
+   */
+  @Override public void bindTexelOffset(float[] texelOffset) {
+    final Program program = program();
+    program.bindFloat2Array("texelOffset", texelOffset);
+    program.bindFloatArray("weights", kernel.weights(), taps + 1);
+    if (taps > 0) {
+      program.bindFloatArray("offsets", kernel.offsets(), taps + 1);
+    }
+  }
+
+  static String vertexShader(int taps, int varyingTaps) {
+    StringBuilder s = new StringBuilder()
+        .append("attribute vec4 vertexAttribPosition;\n")
+        .append("uniform highp vec2 texelOffset;\n");
+    if (taps > 0) {
+      s.append("uniform highp float offsets[").append(taps + 1).append("];\n");
+    }
+    s.append("varying highp vec2 v_textureCoordinate;\n");
+    if (varyingTaps > 0) {
+      s.append("varying highp vec4 v_taps[").append(varyingTaps).append("];\n");
+    }
+    s.append("void main()\n")
+        .append("{\n")
+        .append("    v_textureCoordinate = vertexAttribPosition.xy * 0.5 + 0.5;\n");
+    for (int i = 0; i < varyingTaps; i++) {
+      s.append("    v_taps[").append(i).append("] = vec4(")
+          .append("v_textureCoordinate + texelOffset * offsets[").append(i + 1).append("], ")
+          .append("v_textureCoordinate - texelOffset * offsets[").append(i + 1).append("]);\n");
+    }
+    return s.append("    gl_Position = vertexAttribPosition;\n")
+        .append("}\n")
+        .toString();
+  }
+
+  static String fragmentShader(int taps, int varyingTaps) {
+    StringBuilder s = new StringBuilder()
+        .append("precision mediump float;\n")
+        .append("uniform sampler2D inputImageTexture;\n")
+        .append("uniform highp vec2 texelOffset;\n")
+        .append("uniform float weights[").append(taps + 1).append("];\n");
+    if (taps > varyingTaps) {
+      s.append("uniform highp float offsets[").append(taps + 1).append("];\n");
+    }
+    s.append("varying highp vec2 v_textureCoordinate;\n");
+    if (varyingTaps > 0) {
+      s.append("varying highp vec4 v_taps[").append(varyingTaps).append("];\n");
+    }
+    s.append("void main()\n")
+        .append("{\n")
+        .append("    lowp SAMPLE_TYPE sum = ")
+        .append("texture2D(inputImageTexture, v_textureCoordinate).CHANNELS * weights[0];\n");
+    for (int i = 0; i < taps; i++) {
+      if (i < varyingTaps) {
+        s.append("    sum += (texture2D(inputImageTexture, v_taps[").append(i).append("].xy) + ")
+            .append("texture2D(inputImageTexture, v_taps[").append(i).append("].zw)).CHANNELS")
+            .append(" * weights[")
+            .append(i + 1).append("];\n");
+      } else {
+        s.append("    sum += (texture2D(inputImageTexture, v_textureCoordinate + texelOffset * offsets[")
+            .append(i + 1).append("]) + ")
+            .append("texture2D(inputImageTexture, v_textureCoordinate - texelOffset * offsets[")
+            .append(i + 1).append("])).CHANNELS * weights[").append(i + 1).append("];\n");
+      }
+    }
+    return s.append("    gl_FragColor = vec4(sum);\n")
+        .append("}")
+        .toString();
+  }
+}
@@ -0,0 +1,127 @@
+package com.ryanharter.android.gl;
+
+/**
+ * The weights and offsets of a one dimensional Gaussian blur, with adjacent taps merged so that
+ * bilinear filtering fetches both with a single texture read.
+ *
+ * Two texels at distances <code>i</code> and <code>i + 1</code> from the center, with weights
+ * <code>w1</code> and <code>w2</code>, contribute the same as one linearly filtered fetch at
+ * <code>(i * w1 + (i + 1) * w2) / (w1 + w2)</code> weighted by <code>w1 + w2</code>, which halves
+ * the reads of a blur of any radius.
+ *
+ * Tap 0 is the center texel, taps 1 to {@link #tapCount()} are applied on both sides of it.
+ */
+public final class GaussianKernel {
+
+  private final float sigma;
+  private final int radius;
+  private final float[] offsets;
+  private final float[] weights;
+  private final float[] texelWeights;
+
+  private GaussianKernel(float sigma, int radius, float[] offsets, float[] weights,
+      float[] texelWeights) {
+    this.sigma = sigma;
+    this.radius = radius;
+    this.offsets = offsets;
+    this.weights = weights;
+    this.texelWeights = texelWeights;
+  }
+
+  /**
+   * Creates the kernel of a Gaussian with standard deviation <code>sigma</code>, in texels,
+   * truncated at 3 sigma.  A sigma of 0 creates a kernel that copies the image.
+   */
+  public static GaussianKernel create(float sigma) {
+    if (sigma < 0 || Float.isNaN(sigma)) {
+      throw new IllegalArgumentException("Sigma must be positive, was " + sigma);
+    }
+
+    final int radius = (int) Math.ceil(sigma * 3);
+    final float[] discrete = new float[radius + 1];
+    float sum = 0;
+    for (int i = 0; i <= radius; i++) {
+      discrete[i] = i == 0 ? 1 : (float) Math.exp(-(i * i) / (2.0 * sigma * sigma));
+      sum += i == 0 ? discrete[i] : 2 * discrete[i];
+    }
+    for (int i = 0; i <= radius; i++) {
+      discrete[i] /= sum;
+    }
+
+    // merge each pair of texels after the center into a single linearly filtered tap
+    final int taps = (radius + 1) / 2;
+    final float[] offsets = new float[taps + 1];
+    final float[] weights = new float[taps + 1];
+    weights[0] = discrete[0];
+    for (int tap = 1; tap <= taps; tap++) {
+      final int first = tap * 2 - 1;
+      final float w1 = discrete[first];
+      final float w2 = first + 1 <= radius ? discrete[first + 1] : 0;
+      weights[tap] = w1 + w2;
+      // tiny sigmas underflow the outer weights to 0, which would make the offset NaN
+      offsets[tap] = w1 + w2 > 0 ? (first * w1 + (first + 1) * w2) / (w1 + w2) : first;
+    }
+
+    return new GaussianKernel(sigma, radius, offsets, weights, discrete);
+  }
+
+  /**
+   * Returns the largest sigma whose kernel has at most <code>taps</code> taps.
+   */
+  public static float maxSigma(int taps) {
+    // the radius is ceil(3 sigma), and each tap covers two texels of it
+    float sigma = 2f * taps / 3f;
+    while (sigma > 0 && (int) Math.ceil(sigma * 3) > 2 * taps) {
+      sigma = Math.nextDown(sigma);
+    }
+    return sigma;
+  }
+
+  public float sigma() {
+    return sigma;
+  }
+
+  /**
+   * The distance in texels of the farthest texel the kernel covers.
+   */
+  public int radius() {
+    return radius;
+  }
+
+  /**
+   * The number of taps on each side of the center, each of which is a single texture read.
+   */
+  public int tapCount() {
+    return offsets.length - 1;
+  }
+
+  /**
+   * The distance in texels of tap <code>index</code> from the center.
+   */
+  public float offset(int index) {
+    return offsets[index];
+  }
+
+  /**
+   * The weight of tap <code>index</code>, applied to each side of the center.
+   */
+  public float weight(int index) {
+    return weights[index];
+  }
+
+  float[] offsets() {
+    return offsets;
+  }
+
+  float[] weights() {
+    return weights;
+  }
+
+  /**
+   * The weight of each texel from the center to {@link #radius()}, before merging, for
+   * implementations that read every texel.
+   */
+  float[] texelWeights() {
+    return texelWeights;
+  }
+}
@@ -0,0 +1,153 @@
+package com.ryanharter.android.gl
+
+import android.opengl.GLES20.GL_CLAMP_TO_EDGE
+import android.opengl.GLES20.GL_COLOR_ATTACHMENT0
+import android.opengl.GLES20.GL_COLOR_BUFFER_BIT
+import android.opengl.GLES20.GL_FRAMEBUFFER
+import android.opengl.GLES20.GL_FRAMEBUFFER_COMPLETE
+import android.opengl.GLES20.GL_LINEAR
+import android.opengl.GLES20.GL_RGBA
+import android.opengl.GLES20.GL_TEXTURE_2D
+import android.opengl.GLES20.GL_TEXTURE_MAG_FILTER
+import android.opengl.GLES20.GL_TEXTURE_MIN_FILTER
+import android.opengl.GLES20.GL_TEXTURE_WRAP_S
+import android.opengl.GLES20.GL_TEXTURE_WRAP_T
+import android.opengl.GLES20.glCheckFramebufferStatus
+import android.opengl.GLES20.glClear
+import android.opengl.GLES20.glClearColor
+import android.opengl.GLES20.glFramebufferTexture2D
+import android.opengl.GLES20.glGetIntegerv
+import android.opengl.GLES20.glTexParameteri
+import android.opengl.GLES30.GL_MAX_COLOR_ATTACHMENTS
+import android.opengl.GLES30.GL_MAX_DRAW_BUFFERS
+import android.opengl.GLES30.glDrawBuffers
+
+/**
+ * A [WritableTexture] with several color attachments, so that a single pass can write
+ * multiple outputs, selected in the fragment shader with `layout(location = n) out`.
+ *
+ * This texture itself is attachment 0, the others are available from [attachment]. Each
+ * attachment can have its own internal format, given in [internalFormats].
+ *
+ * Multiple render targets require OpenGL ES 3.0.
+ */
+open class MultiTargetTexture @JvmOverloads constructor(
+  width: Int,
+  height: Int,
+  internalFormats: IntArray = intArrayOf(GL_RGBA, GL_RGBA),
+  hasDepth: Boolean = false,
+  hasStencil: Boolean = false,
+  sharedDepthStencil: Boolean = false
+) : WritableTexture(width, height, hasDepth, hasStencil, firstFormat(internalFormats),
+  sharedDepthStencil = sharedDepthStencil) {
+
+  private companion object {
+    /**
+     * Returns the format of attachment 0, which is validated here because it's needed by the
+     * superclass constructor, before any of this class's initializers run.
+     */
+    fun firstFormat(internalFormats: IntArray): Int {
+      require(internalFormats.isNotEmpty()) { "At least one attachment format is required." }
+      return internalFormats[0]
+    }
+  }
+
+  /**
+   * An extra color attachment, which can reallocate its storage when the texture is resized.
+   */
+  private class Attachment(private val internalFormat: Int) : Texture() {
+
+    private var immutable = false
+
+    fun allocate(width: Int, height: Int) {
+      if (immutable) {
+        replaceName(GLResources.generate(GLResources.TEXTURE))
+      }
+      GLState.bindTexture(0, GL_TEXTURE_2D, name)
+
+      glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR)
+      glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR)
+      glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE)
+      glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE)
+
+      immutable = texStorage2D(GL_TEXTURE_2D, 1, internalFormat, width, height,
+        format(internalFormat), type(internalFormat))
+      glCheckError { "MultiTargetTexture: texStorage2D for attachment format $internalFormat" }
+
+      GLState.bindTexture(0, GL_TEXTURE_2D, 0)
+    }
+  }
+
+  private val attachments: Array<Texture>
+
+  init {
+    if (GLState.getGlVersion() != GLState.GLVersion.GLES_30) {
+      throw IllegalStateException("MultiTargetTexture requires OpenGL ES 3.0.")
+    }
+
+    val temp = IntArray(1)
+    glGetIntegerv(GL_MAX_DRAW_BUFFERS, temp, 0)
+    val maxDrawBuffers = temp[0]
+    glGetIntegerv(GL_MAX_COLOR_ATTACHMENTS, temp, 0)
+    val maxAttachments = minOf(maxDrawBuffers, temp[0])
+    if (internalFormats.size > maxAttachments) {
+      throw IllegalArgumentException(
+        "${internalFormats.size} attachments requested, but only $maxAttachments are supported.")
+    }
+
+    attachments = Array(internalFormats.size) { i ->
+      if (i == 0) this else Attachment(internalFormats[i]).apply { allocate(width, height) }
+    }
+
+    bindFramebuffer()
+
+    val drawBuffers = IntArray(attachments.size) { GL_COLOR_ATTACHMENT0 + it }
+    for (i in 1 until attachments.size) {
+      glFramebufferTexture2D(GL_FRAMEBUFFER, drawBuffers[i], GL_TEXTURE_2D, attachments[i].name, 0)
+    }
+    glDrawBuffers(drawBuffers.size, drawBuffers, 0)
+    glCheckError { "MultiTargetTexture: Attaching ${attachments.size} color buffers." }
+
+    val status = glCheckFramebufferStatus(GL_FRAMEBUFFER)
+    if (status != GL_FRAMEBUFFER_COMPLETE) {
+      GLState.logger.log("Failed to make complete multi target Framebuffer: 0x${Integer.toHexString(status)}")
+    } else {
+      glClearColor(0f, 0f, 0f, 0f)
+      glClear(GL_COLOR_BUFFER_BIT)
+    }
+
+    unbindFramebuffer()
+  }
+
+  /**
+   * The number of color attachments.
+   */
+  val attachmentCount: Int
+    get() = attachments.size
+
+  override val colorAttachmentCount: Int
+    get() = attachments.size
+
+  /**
+   * Returns the color attachment at [index], which is written by fragment output location
+   * [index]. Attachment 0 is this texture.
+   */
+  fun attachment(index: Int): Texture = attachments[index]
+
+  override fun onReallocate() {
+    for (i in 1 until attachments.size) {
+      val attachment = attachments[i] as Attachment
+      attachment.allocate(width, height)
+      glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0 + i, GL_TEXTURE_2D,
+        attachment.name, 0)
+    }
+    glCheckError { "MultiTargetTexture: Reallocating ${attachments.size} color buffers." }
+  }
+
+  override fun destroy() {
+    for (i in 1 until attachments.size) {
+      attachments[i].destroy()
+    }
+    super.destroy()
+  }
+}
@@ -11,14 +11,17 @@ import java.util.Collections;
 import java.util.Map;
 
 import static android.opengl.GLES20.GL_FRAGMENT_SHADER;
+import static android.opengl.GLES31.GL_COMPUTE_SHADER;
 import static android.opengl.GLES20.GL_VERTEX_SHADER;
 import static android.opengl.GLES20.glDeleteShader;
 import static android.opengl.GLES20.glGetAttribLocation;
 import static android.opengl.GLES20.glGetUniformLocation;
 import static android.opengl.GLES20.glUniform1f;
+import static android.opengl.GLES20.glUniform1fv;
 import static android.opengl.GLES20.glUniform1i;
 import static android.opengl.GLES20.glUniform2f;
 import static android.opengl.GLES20.glUniform2fv;
+import static android.opengl.GLES20.glUniform2i;
 import static android.opengl.GLES20.glUniform3f;
 import static android.opengl.GLES20.glUniform4f;
 import static android.opengl.GLES20.glUniform4fv;
@@ -30,7 +33,7 @@ import static android.opengl.GLES20.glUniformMatrix4fv;
  * Call {@link #use()} to use the program, then uniform values can be set with the
  * <code>bind*</code> methods.
  */
-@SuppressLint("DefaultLocale")
+@SuppressLint({"DefaultLocale", "InlinedApi"})
 public class Program {
 
   static final ArrayMap<String, Program> programs = new ArrayMap<>();
@@ -40,6 +43,7 @@ public class Program {
   private int program;
   private int vertexShader;
   private int fragmentShader;
+  private int computeShader;
 
   private final ArrayMap<String, Integer> uniforms = new ArrayMap<>();
   private final ArrayMap<String, Integer> attributes = new ArrayMap<>();
@@ -171,6 +175,27 @@ public class Program {
     return program;
   }
 
+  /**
+   * Loads a compute program using the supplied source.  Compute shaders require OpenGL ES 3.1.
+   *
+   * If a program named <code>name</code> has already been loaded it will be returned to avoid
+   * creating identical programs.
+   *
+   * @param name The name of the program to load.
+   * @param computeSource The GLSL source of the compute shader.
+   * @return The compiled and linked program.
+   */
+  public static Program loadCompute(String name, String computeSource) {
+    Program program = programs.get(name);
+    if (program == null) {
+      program = new Program(name);
+      program.compileCompute(name, computeSource);
+
+      programs.put(name, program);
+    }
+    return program;
+  }
+
   private static String assembleSource(String source, Map<String, String> defines) {
     BufferedReader reader = null;
     try {
@@ -230,6 +255,16 @@ public class Program {
     isValid = program != 0;
   }
 
+  private void compileCompute(String name, String cs) {
+    if ((computeShader = Programs.loadShader(GL_COMPUTE_SHADER, cs)) == 0) {
+      GLState.INSTANCE.getLogger().log(String.format("Couldn't compile compute shader: %s", name));
+      return;
+    }
+    program = Programs.linkProgram(computeShader);
+
+    isValid = program != 0;
+  }
+
   /**
    * Whether the program is valid.
    * @return true if the program is valid.
@@ -252,7 +287,11 @@ public class Program {
    */
   public void destroy() {
     if (isValid()) {
-      Programs.destroy(program, vertexShader, fragmentShader);
+      if (computeShader != 0) {
+        Programs.destroy(program, computeShader);
+      } else {
+        Programs.destroy(program, vertexShader, fragmentShader);
+      }
       isValid = false;
     }
   }
@@ -320,6 +359,27 @@ public class Program {
     glUniform1i(location, v);
   }
 
+  /**
+   * Binds two integers to the ivec2 uniform named <code>name</code>.
+   * @param name The name of the uniform to bind.
+   * @param x The first value to bind to the uniform.
+   * @param y The second value to bind to the uniform.
+   */
+  public void bindInt2(String name, int x, int y) {
+    bindInt2(uniformLocation(name), x, y);
+  }
+
+  /**
+   * Binds two integers to the ivec2 uniform at <code>location</code>.
+   * @param location The location of the uniform to bind.
+   * @param x The first value to bind to the uniform.
+   * @param y The second value to bind to the uniform.
+   */
+  public void bindInt2(int location, int x, int y) {
+    if (location < 0) return;
+    glUniform2i(location, x, y);
+  }
+
   /**
    * Binds a float to the uniform named <code>name</code>.
    * @param name The name of hte uniform to bind.
@@ -427,6 +487,29 @@ public class Program {
     glUniformMatrix4fv(location, 1, false, m, 0);
   }
 
+  /**
+   * Binds the first <code>count</code> floats of <code>v</code> to the float array uniform named
+   * <code>name</code>.
+   * @param name The name of the uniform to bind.
+   * @param v The values to bind to the uniform.
+   * @param count The number of elements to bind.
+   */
+  public void bindFloatArray(String name, float[] v, int count) {
+    bindFloatArray(uniformLocation(name), v, count);
+  }
+
+  /**
+   * Binds the first <code>count</code> floats of <code>v</code> to the float array uniform at
+   * <code>location</code>.
+   * @param location The location of the uniform to bind.
+   * @param v The values to bind to the uniform.
+   * @param count The number of elements to bind.
+   */
+  public void bindFloatArray(int location, float[] v, int count) {
+    if (location < 0) return;
+    glUniform1fv(location, count, v, 0);
+  }
+
   /**
    * Binds a 2 float array to the uniform named <code>name</code>.
    * @param name The name of the uniform to bind.
@@ -464,4 +547,27 @@ public class Program {
     if (location < 0) return;
     glUniform4fv(location, 1, v, 0);
   }
+
+  /**
+   * Binds the first <code>count</code> vec4s of <code>v</code> to the vec4 array uniform named
+   * <code>name</code>.
+   * @param name The name of the uniform to bind.
+   * @param v The values to bind to the uniform, 4 floats per element.
+   * @param count The number of elements to bind.
+   */
+  public void bindFloat4Array(String name, float[] v, int count) {
+    bindFloat4Array(uniformLocation(name), v, count);
+  }
+
+  /**
+   * Binds the first <code>count</code> vec4s of <code>v</code> to the vec4 array uniform at
+   * <code>location</code>.
+   * @param location The location of the uniform to bind.
+   * @param v The values to bind to the uniform, 4 floats per element.
+   * @param count The number of elements to bind.
+   */
+  public void bindFloat4Array(int location, float[] v, int count) {
+    if (location < 0) return;
+    glUniform4fv(location, count, v, 0);
+  }
 }
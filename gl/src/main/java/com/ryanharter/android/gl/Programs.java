@@ -1,5 +1,6 @@
 package com.ryanharter.android.gl;
 
+import android.annotation.SuppressLint;
 import android.content.res.AssetManager;
 import android.opengl.GLES20;
 
@@ -26,7 +27,9 @@ import static android.opengl.GLES20.glGetShaderInfoLog;
 import static android.opengl.GLES20.glGetShaderiv;
 import static android.opengl.GLES20.glLinkProgram;
 import static android.opengl.GLES20.glShaderSource;
+import static android.opengl.GLES31.GL_COMPUTE_SHADER;
 
+@SuppressLint("InlinedApi")
 final class Programs {
 
   private Programs() { }
@@ -71,6 +74,8 @@ final class Programs {
         typeName = "vertex";
       } else if (type == GL_FRAGMENT_SHADER) {
         typeName = "fragment";
+      } else if (type == GL_COMPUTE_SHADER) {
+        typeName = "compute";
       } else {
         typeName = String.format("(unknown type: %d)", type);
       }
@@ -0,0 +1,163 @@
+package com.ryanharter.android.gl;
+
+import java.util.Map;
+
+/**
+ * A dual filtering (Kawase) blur, which downsamples the image into progressively smaller
+ * targets and upsamples it back, blurring at each step.  Most of the work happens at low
+ * resolution, so large radii cost a fraction of the fill-rate of a full resolution
+ * separable blur.
+ *
+ * Intermediate targets are taken from a {@link RenderTargetPool}, and returned to it once the
+ * blur completes.
+ */
+final class PyramidBlur {
+
+  /** The most levels used, beyond which the smallest targets are too small to matter. */
+  static final int MAX_LEVELS = 8;
+
+  private static final String VERTEX_SHADER = ""
+      + "attribute vec4 vertexAttribPosition;\n"
+      + "varying highp vec2 v_textureCoordinate;\n"
+      + "void main()\n"
+      + "{\n"
+      + "    v_textureCoordinate = vertexAttribPosition.xy * 0.5 + 0.5;\n"
+      + "    gl_Position = vertexAttribPosition;\n"
+      + "}\n";
+
+  private static final String DOWNSAMPLE_SHADER = ""
+      + "uniform sampler2D inputImageTexture;\n"
+      + "uniform highp vec2 halfTexel;\n"
+      + "varying highp vec2 v_textureCoordinate;\n"
+      + "void main()\n"
+      + "{\n"
+      + "    highp vec2 uv = v_textureCoordinate;\n"
+      + "    lowp SAMPLE_TYPE sum = texture2D(inputImageTexture, uv).CHANNELS * 4.0;\n"
+      + "    sum += texture2D(inputImageTexture, uv - halfTexel).CHANNELS;\n"
+      + "    sum += texture2D(inputImageTexture, uv + halfTexel).CHANNELS;\n"
+      + "    sum += texture2D(inputImageTexture, uv + vec2(halfTexel.x, -halfTexel.y)).CHANNELS;\n"
+      + "    sum += texture2D(inputImageTexture, uv - vec2(halfTexel.x, -halfTexel.y)).CHANNELS;\n"
+      + "    gl_FragColor = vec4(sum / 8.0);\n"
+      + "}";
+
+  private static final String UPSAMPLE_SHADER = ""
+      + "uniform sampler2D inputImageTexture;\n"
+      + "uniform highp vec2 halfTexel;\n"
+      + "varying highp vec2 v_textureCoordinate;\n"
+      + "void main()\n"
+      + "{\n"
+      + "    highp vec2 uv = v_textureCoordinate;\n"
+      + "    lowp SAMPLE_TYPE sum =\n"
+      + "        texture2D(inputImageTexture, uv + vec2(-halfTexel.x * 2.0, 0.0)).CHANNELS;\n"
+      + "    sum += texture2D(inputImageTexture, uv + vec2(halfTexel.x * 2.0, 0.0)).CHANNELS;\n"
+      + "    sum += texture2D(inputImageTexture, uv + vec2(0.0, -halfTexel.y * 2.0)).CHANNELS;\n"
+      + "    sum += texture2D(inputImageTexture, uv + vec2(0.0, halfTexel.y * 2.0)).CHANNELS;\n"
+      + "    sum += texture2D(inputImageTexture, uv - halfTexel).CHANNELS * 2.0;\n"
+      + "    sum += texture2D(inputImageTexture, uv + halfTexel).CHANNELS * 2.0;\n"
+      + "    sum += texture2D(inputImageTexture, uv + vec2(halfTexel.x, -halfTexel.y)).CHANNELS * 2.0;\n"
+      + "    sum += texture2D(inputImageTexture, uv - vec2(halfTexel.x, -halfTexel.y)).CHANNELS * 2.0;\n"
+      + "    gl_FragColor = vec4(sum / 12.0);\n"
+      + "}";
+
+  private final Program downsample;
+  private final Program upsample;
+  private final WritableTexture[] levels = new WritableTexture[MAX_LEVELS];
+
+  /**
+   * @param singleChannel Whether to only read and write the red channel.
+   */
+  PyramidBlur(boolean singleChannel) {
+    final String suffix = singleChannel ? "R" : "";
+    final Map<String, String> defines = BlurableTexture.channelDefines(singleChannel);
+    downsample = Program.load("PyramidBlurDownsample" + suffix, VERTEX_SHADER, DOWNSAMPLE_SHADER,
+        defines);
+    upsample = Program.load("PyramidBlurUpsample" + suffix, VERTEX_SHADER, UPSAMPLE_SHADER,
+        defines);
+  }
+
+  /**
+   * Returns the number of levels needed for a blur of <code>radius</code> pixels on an image of
+   * the given size.  Each level roughly doubles the radius, and levels stop before the smallest
+   * target would be less than 2 pixels across.
+   */
+  static int levels(float radius, int width, int height) {
+    int levels = 1;
+    final int size = Math.min(width, height);
+    while (levels < MAX_LEVELS && reach(levels) < radius && (size >> (levels + 1)) >= 2) {
+      levels++;
+    }
+    return levels;
+  }
+
+  /**
+   * Returns the sample offset, in texels of each level, that makes a blur with
+   * <code>levels</code> levels cover <code>radius</code> pixels.
+   */
+  static float offset(float radius, int levels) {
+    return Math.max(0f, Math.min(2f * radius / reach(levels), 4f));
+  }
+
+  /**
+   * The approximate radius, in full resolution pixels, of a blur with <code>levels</code> levels
+   * and an offset of 1.
+   */
+  private static int reach(int levels) {
+    return (2 << levels) - 2;
+  }
+
+  /**
+   * Blurs <code>source</code> into <code>target</code>, which must be the same size, by
+   * <code>radius</code> pixels.  Intermediate targets have the given internal format.
+   */
+  void blur(Texture source, WritableTexture target, int width, int height, float radius,
+      RenderTargetPool pool, int internalFormat, int discardOnUnbind) {
+    final int count = levels(radius, width, height);
+    final float offset = offset(radius, count);
+
+    // there's no blending, and every pass overwrites its whole target
+    GLState.INSTANCE.setBlend(false, false);
+    GLState.INSTANCE.setScissorTest(false);
+
+    try {
+      Texture input = source;
+      int inputWidth = width;
+      int inputHeight = height;
+      for (int i = 0; i < count; i++) {
+        final int levelWidth = Math.max(1, width >> (i + 1));
+        final int levelHeight = Math.max(1, height >> (i + 1));
+        levels[i] = pool.acquire(levelWidth, levelHeight, internalFormat);
+        pass(downsample, levels[i], input, inputWidth, inputHeight, offset,
+            WritableTexture.DISCARD_NONE);
+        input = levels[i];
+        inputWidth = levelWidth;
+        inputHeight = levelHeight;
+      }
+
+      for (int i = count - 1; i >= 0; i--) {
+        final WritableTexture output = i == 0 ? target : levels[i - 1];
+        pass(upsample, output, levels[i], levels[i].getWidth(), levels[i].getHeight(), offset,
+            i == 0 ? discardOnUnbind : WritableTexture.DISCARD_NONE);
+      }
+    } finally {
+      for (int i = 0; i < count; i++) {
+        if (levels[i] != null) {
+          pool.release(levels[i]);
+          levels[i] = null;
+        }
+      }
+    }
+  }
+
+  private void pass(Program program, WritableTexture target, Texture source, int sourceWidth,
+      int sourceHeight, float offset, int discardOnUnbind) {
+    target.bindFramebuffer(WritableTexture.DISCARD_COLOR);
+
+    program.use();
+    source.bind(0);
+    program.bindInt("inputImageTexture", 0);
+    program.bindFloat2("halfTexel", 0.5f * offset / sourceWidth, 0.5f * offset / sourceHeight);
+    GLState.INSTANCE.render();
+
+    target.unbindFramebuffer(true, discardOnUnbind);
+  }
+}
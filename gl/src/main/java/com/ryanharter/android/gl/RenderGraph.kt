@@ -0,0 +1,318 @@
+package com.ryanharter.android.gl
+
+import android.opengl.GLES20.GL_RGBA
+
+/**
+ * Describes a multi-pass effect as a set of passes and the textures they read and write, so
+ * that intermediate targets only exist while they're needed.
+ *
+ * Each pass writes a single target. When the graph is executed:
+ *
+ *  - Passes whose output isn't consumed by an output of the graph are culled.
+ *  - Transient targets, created with [createTarget], are assigned to textures from a
+ *    [RenderTargetPool], and targets whose lifetimes don't overlap share the same texture.
+ *  - Passes are run in the order they were added, and framebuffers are only switched when
+ *    the target changes.
+ *
+ * Targets imported with [importTarget] are always considered outputs, since they're visible
+ * outside of the graph. Transient targets can be made outputs with [markOutput], in which case
+ * their textures aren't shared with other targets, and are kept after [execute] so they can be
+ * read with [texture] until the graph is executed again or cleared.
+ *
+ * ```
+ * val graph = RenderGraph(pool)
+ * val source = graph.importTexture(image)
+ * val blurred = graph.createTarget(width, height)
+ * val output = graph.importTarget(layer)
+ * graph.addPass("blur", listOf(source), blurred, overwrite = true) { blur(it.texture(source)) }
+ * graph.addPass("composite", listOf(blurred), output) { composite(it.texture(blurred)) }
+ * graph.execute()
+ * ```
+ */
+class RenderGraph(private val pool: RenderTargetPool) {
+
+  /**
+   * A texture in the graph.
+   */
+  class Handle internal constructor(internal val graph: RenderGraph, internal val index: Int)
+
+  interface Pass {
+    /**
+     * Renders the pass. The target's framebuffer is bound, and must not be changed.
+     */
+    fun execute(context: Context)
+  }
+
+  class Context internal constructor(private val graph: RenderGraph) {
+
+    /**
+     * The target being rendered to.
+     */
+    lateinit var target: WritableTexture
+      internal set
+
+    /**
+     * Returns the texture assigned to [handle], which is only valid for the duration of the pass.
+     */
+    fun texture(handle: Handle): Texture = graph.textures[graph.check(handle)]
+      ?: throw IllegalStateException("Texture ${handle.index} hasn't been allocated.")
+  }
+
+  private val passes = ArrayList<PassNode>()
+  private val resources = ArrayList<ResourceNode>()
+  private var schedule: Schedule? = null
+
+  private var textures = arrayOfNulls<Texture>(0)
+  private var outputs = arrayOfNulls<WritableTexture>(0)
+  private val context = Context(this)
+
+  /**
+   * Creates a transient target, which will be allocated from the pool while it's in use.
+   */
+  @JvmOverloads
+  fun createTarget(width: Int, height: Int, internalFormat: Int = GL_RGBA): Handle =
+    addResource(ResourceNode(width, height, internalFormat, external = false))
+
+  /**
+   * Imports an existing texture so that passes can read it.
+   */
+  fun importTexture(texture: Texture): Handle =
+    addResource(ResourceNode(0, 0, 0, external = true, texture = texture))
+
+  /**
+   * Imports an existing render target so that passes can read or write it. Passes writing it
+   * are never culled.
+   */
+  fun importTarget(texture: WritableTexture): Handle =
+    addResource(ResourceNode(0, 0, 0, external = true, texture = texture).apply { output = true })
+
+  /**
+   * Marks [handle] as an output of the graph, so that the passes writing it aren't culled. The
+   * texture of a transient output is held until the next [execute] or [clear], and can be read
+   * with [texture] in between.
+   */
+  fun markOutput(handle: Handle) {
+    resources[check(handle)].output = true
+    schedule = null
+  }
+
+  /**
+   * Adds a pass that reads the textures in [reads] and renders to [write].
+   *
+   * @param overwrite Whether the pass overwrites the whole target, in which case the previous
+   * contents don't need to be loaded and earlier passes writing it may be culled.
+   */
+  @JvmOverloads
+  fun addPass(name: String, reads: List<Handle>, write: Handle, overwrite: Boolean = false,
+    pass: Pass) {
+    val target = resources[check(write)]
+    if (target.external && target.texture !is WritableTexture) {
+      throw IllegalArgumentException("Pass $name writes to a texture that isn't a render target.")
+    }
+    val readIndices = IntArray(reads.size) { check(reads[it]) }
+    passes.add(PassNode(name, readIndices, write.index, overwrite, pass))
+    schedule = null
+  }
+
+  @JvmSynthetic
+  fun addPass(name: String, reads: List<Handle>, write: Handle, overwrite: Boolean = false,
+    body: (Context) -> Unit) = addPass(name, reads, write, overwrite, object : Pass {
+    override fun execute(context: Context) = body(context)
+  })
+
+  /**
+   * Runs the passes that contribute to the outputs of the graph.
+   */
+  fun execute() {
+    val schedule = schedule ?: compileRenderGraph(passes, resources).also { schedule = it }
+    releaseOutputs()
+
+    // assign textures, aliased targets share a pooled texture
+    textures = arrayOfNulls(resources.size)
+    val slots = arrayOfNulls<WritableTexture>(schedule.slotCount)
+    for (i in resources.indices) {
+      val resource = resources[i]
+      val slot = schedule.slots[i]
+      textures[i] = when {
+        resource.external -> resource.texture
+        slot >= 0 -> slots[slot] ?: pool.acquire(resource.width, resource.height,
+          resource.internalFormat).also { slots[slot] = it }
+        else -> null
+      }
+    }
+
+    var current: WritableTexture? = null
+    try {
+      for (index in schedule.passes) {
+        val pass = passes[index]
+        val target = textures[pass.write] as WritableTexture
+        val discard = if (pass.overwrite) WritableTexture.DISCARD_COLOR else WritableTexture.DISCARD_NONE
+        when {
+          current == null -> target.bindFramebuffer(discard)
+          current !== target -> current.switchFramebuffer(target, nextDiscard = discard)
+        }
+        current = target
+        context.target = target
+        pass.pass!!.execute(context)
+      }
+    } finally {
+      current?.unbindFramebuffer()
+
+      // transient outputs keep their textures until the next execution
+      outputs = arrayOfNulls(resources.size)
+      for (i in resources.indices) {
+        val slot = schedule.slots[i]
+        if (resources[i].output && slot >= 0) {
+          outputs[i] = slots[slot]
+          slots[slot] = null
+        }
+      }
+      slots.forEach { if (it != null) pool.release(it) }
+      textures = arrayOfNulls(0)
+    }
+  }
+
+  /**
+   * Returns the texture of [handle] after [execute], which is either an imported texture, or a
+   * transient target marked with [markOutput]. Transient outputs are only valid until the graph
+   * is executed again or cleared.
+   */
+  fun texture(handle: Handle): Texture {
+    val index = check(handle)
+    val resource = resources[index]
+    if (resource.external) {
+      return resource.texture!!
+    }
+    return outputs.getOrNull(index)
+      ?: throw IllegalStateException("Target $index isn't an output of the last execution.")
+  }
+
+  /**
+   * Removes all passes and textures, so the graph can be built again.
+   */
+  fun clear() {
+    releaseOutputs()
+    passes.clear()
+    resources.clear()
+    schedule = null
+  }
+
+  private fun releaseOutputs() {
+    outputs.forEach { if (it != null) pool.release(it) }
+    outputs = arrayOfNulls(0)
+  }
+
+  private fun addResource(resource: ResourceNode): Handle {
+    resources.add(resource)
+    schedule = null
+    return Handle(this, resources.size - 1)
+  }
+
+  private fun check(handle: Handle): Int {
+    if (handle.graph !== this || handle.index >= resources.size) {
+      throw IllegalArgumentException("Handle doesn't belong to this graph.")
+    }
+    return handle.index
+  }
+}
+
+internal class PassNode(
+  val name: String,
+  val reads: IntArray,
+  val write: Int,
+  val overwrite: Boolean,
+  val pass: RenderGraph.Pass? = null
+)
+
+internal class ResourceNode(
+  val width: Int,
+  val height: Int,
+  val internalFormat: Int,
+  val external: Boolean,
+  val texture: Texture? = null
+) {
+  var output = false
+}
+
+/**
+ * The compiled form of a [RenderGraph].
+ *
+ * @property passes The indices of the passes to run, in order.
+ * @property slots The pooled texture assigned to each resource, or -1 for external or unused
+ * resources.
+ * @property slotCount The number of pooled textures needed.
+ */
+internal class Schedule(val passes: IntArray, val slots: IntArray, val slotCount: Int)
+
+/**
+ * Culls the passes that don't contribute to an output, then assigns transient resources to as
+ * few pooled textures as possible.
+ */
+internal fun compileRenderGraph(passes: List<PassNode>, resources: List<ResourceNode>): Schedule {
+  // walk backwards from the outputs, marking the passes that produce what's needed
+  val needed = BooleanArray(resources.size) { resources[it].output }
+  val live = BooleanArray(passes.size)
+  for (i in passes.indices.reversed()) {
+    val pass = passes[i]
+    if (!needed[pass.write]) {
+      continue
+    }
+    live[i] = true
+    if (pass.overwrite) {
+      // earlier contents are replaced
+      needed[pass.write] = false
+    }
+    pass.reads.forEach { needed[it] = true }
+  }
+  val order = passes.indices.filter { live[it] }.toIntArray()
+
+  // lifetimes, as steps in the execution order
+  val first = IntArray(resources.size) { -1 }
+  val last = IntArray(resources.size) { -1 }
+  order.forEachIndexed { step, index ->
+    val pass = passes[index]
+    for (r in pass.reads + pass.write) {
+      if (first[r] == -1) {
+        first[r] = step
+      }
+      last[r] = step
+    }
+  }
+
+  // transient outputs are read after the graph, so nothing may reuse their textures
+  for (r in resources.indices) {
+    if (resources[r].output && !resources[r].external && first[r] != -1) {
+      last[r] = order.size
+    }
+  }
+
+  // greedily reuse a compatible slot whose last occupant is dead before the resource is born
+  val slots = IntArray(resources.size) { -1 }
+  val occupants = ArrayList<Int>()
+  val transient = resources.indices
+    .filter { !resources[it].external && first[it] != -1 }
+    .sortedBy { first[it] }
+  for (r in transient) {
+    val resource = resources[r]
+    var slot = -1
+    for (s in occupants.indices) {
+      val occupant = resources[occupants[s]]
+      if (last[occupants[s]] < first[r] &&
+        occupant.width == resource.width &&
+        occupant.height == resource.height &&
+        occupant.internalFormat == resource.internalFormat) {
+        slot = s
+        break
+      }
+    }
+    if (slot == -1) {
+      slot = occupants.size
+      occupants.add(r)
+    } else {
+      occupants[slot] = r
+    }
+    slots[r] = slot
+  }
+
+  return Schedule(order, slots, occupants.size)
+}
@@ -0,0 +1,73 @@
+package com.ryanharter.android.gl
+
+import android.opengl.GLES20.GL_RGBA
+import java.util.IdentityHashMap
+
+/**
+ * Recycles [WritableTexture]s used as short lived render targets, so that multi-pass effects
+ * don't have to allocate their intermediate textures every frame, or keep one set per effect.
+ *
+ * Textures are matched by size and internal format. Released textures are kept until [trim]
+ * or [destroy] is called, and are forgotten when the GL state is reset, since they died with
+ * the context.
+ */
+class RenderTargetPool {
+
+  private data class Key(val width: Int, val height: Int, val internalFormat: Int)
+
+  private val free = HashMap<Key, ArrayList<WritableTexture>>()
+  private val acquired = IdentityHashMap<WritableTexture, Key>()
+
+  private val resetListener = {
+    free.clear()
+    acquired.clear()
+  }
+
+  init {
+    GLState.addResetListener(resetListener)
+  }
+
+  /**
+   * Returns a render target of the given size and format, which should be returned with
+   * [release] once it's no longer needed. The contents of the texture are undefined.
+   */
+  @JvmOverloads
+  fun acquire(width: Int, height: Int, internalFormat: Int = GL_RGBA): WritableTexture {
+    val key = Key(width, height, internalFormat)
+    val textures = free[key]
+    val texture = if (textures != null && textures.isNotEmpty()) {
+      textures.removeAt(textures.size - 1)
+    } else {
+      // the contents are undefined, so there's no need to clear it
+      WritableTexture(width, height, internalFormat = internalFormat, lazy = true)
+    }
+    acquired[texture] = key
+    return texture
+  }
+
+  /**
+   * Returns [texture] to the pool, so that it can be handed out again.
+   */
+  fun release(texture: WritableTexture) {
+    val key = acquired.remove(texture)
+      ?: throw IllegalArgumentException("Texture ${texture.name} wasn't acquired from this pool.")
+    free.getOrPut(key) { ArrayList() }.add(texture)
+  }
+
+  /**
+   * Destroys all of the textures that aren't currently acquired.
+   */
+  fun trim() {
+    free.values.forEach { textures -> textures.forEach { it.destroy() } }
+    free.clear()
+  }
+
+  /**
+   * Destroys the textures in the pool. Acquired textures are left to their users.
+   */
+  fun destroy() {
+    trim()
+    acquired.clear()
+    GLState.removeResetListener(resetListener)
+  }
+}
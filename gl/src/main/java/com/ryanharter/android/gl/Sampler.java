@@ -11,8 +11,6 @@ import static android.opengl.GLES20.GL_TEXTURE_MIN_FILTER;
 import static android.opengl.GLES20.GL_TEXTURE_WRAP_S;
 import static android.opengl.GLES20.GL_TEXTURE_WRAP_T;
 import static android.opengl.GLES30.glBindSampler;
-import static android.opengl.GLES30.glDeleteSamplers;
-import static android.opengl.GLES30.glGenSamplers;
 import static android.opengl.GLES30.glSamplerParameteri;
 
 public class Sampler {
@@ -23,6 +21,7 @@ public class Sampler {
   public static final int FLAG_MIRROR = 5;
 
   private final int[] sampler = new int[1];
+  private final GLResources.Resource resource;
 
   public Sampler() {
     this(FLAG_LINEAR | FLAG_MIPMAP | FLAG_REPEAT);
@@ -38,7 +37,8 @@ public class Sampler {
       repeat = GL_CLAMP_TO_EDGE;
     }
 
-    glGenSamplers(1, sampler, 0);
+    resource = GLResources.create(this, GLResources.SAMPLER);
+    sampler[0] = resource.getName();
 
     glSamplerParameteri(sampler[0], GL_TEXTURE_MIN_FILTER, mipmap ? GL_LINEAR_MIPMAP_LINEAR : linear);
     glSamplerParameteri(sampler[0], GL_TEXTURE_MAG_FILTER, linear);
@@ -52,6 +52,6 @@ public class Sampler {
   }
 
   public void destroy() {
-    glDeleteSamplers(1, sampler, 0);
+    GLResources.release(resource);
   }
 }
@@ -0,0 +1,59 @@
+package com.ryanharter.android.gl
+
+import android.opengl.GLES20.GL_RENDERBUFFER
+import android.opengl.GLES20.glBindRenderbuffer
+
+/**
+ * Renderbuffers shared between all render targets of the same size and format. Since only
+ * one target is rendered to at a time, targets that don't need their depth or stencil
+ * contents to survive between passes can all use the same buffer.
+ *
+ * Buffers are reference counted, and deleted when the last target using them releases them.
+ */
+internal object SharedRenderbuffers {
+
+  private data class Key(val internalFormat: Int, val width: Int, val height: Int, val samples: Int)
+
+  private class Entry(val key: Key) {
+    val resource = GLResources.create(this, GLResources.RENDERBUFFER)
+    var references = 0
+  }
+
+  private val byKey = HashMap<Key, Entry>()
+  private val byName = HashMap<Int, Entry>()
+
+  /**
+   * Returns the name of the shared renderbuffer with the given format, size and sample count,
+   * creating it if needed.
+   */
+  fun acquire(internalFormat: Int, width: Int, height: Int, multisampleMode: Int = MULTISAMPLE_NONE,
+    samples: Int = 1): Int {
+    val key = Key(internalFormat, width, height, samples)
+    val entry = byKey[key] ?: Entry(key).also {
+      glBindRenderbuffer(GL_RENDERBUFFER, it.resource.name)
+      renderbufferStorage(multisampleMode, samples, internalFormat, width, height)
+      glBindRenderbuffer(GL_RENDERBUFFER, 0)
+      byKey[key] = it
+      byName[it.resource.name] = it
+    }
+    entry.references++
+    return entry.resource.name
+  }
+
+  /**
+   * Releases a reference to the renderbuffer [name], deleting it if it's no longer used.
+   */
+  fun release(name: Int) {
+    val entry = byName[name] ?: return
+    if (--entry.references == 0) {
+      byKey.remove(entry.key)
+      byName.remove(name)
+      GLResources.release(entry.resource)
+    }
+  }
+
+  fun reset() {
+    byKey.clear()
+    byName.clear()
+  }
+}
@@ -0,0 +1,224 @@
+package com.ryanharter.android.gl;
+
+import java.util.Collections;
+
+import static android.opengl.GLES30.GL_RGBA32UI;
+
+/**
+ * A summed-area table of a texture, in which each texel holds the sum of every texel above and
+ * to the left of it, inclusive.  Once built, the sum of any rectangle takes four reads, so box
+ * blurs cost the same for every radius, and the radius can vary per pixel.
+ *
+ * The table is built on the GPU with log-step prefix sums, <code>log2(width) + log2(height)</code>
+ * passes, into 32-bit unsigned integer textures.  Integer sums wrap around, but the sum of a
+ * rectangle is still exact as long as it's less than 2^32, which holds for rectangles of up to
+ * 16 million 8-bit texels.
+ *
+ * Summed-area tables require OpenGL ES 3.0.
+ */
+public final class SummedAreaTable {
+
+  private static final String VERTEX_SHADER = ""
+      + "#version 300 es\n"
+      + "layout(location = 0) in vec4 vertexAttribPosition;\n"
+      + "void main()\n"
+      + "{\n"
+      + "    gl_Position = vertexAttribPosition;\n"
+      + "}\n";
+
+  /** The first horizontal step, which also converts normalized colors to integers. */
+  private static final String INIT_SHADER = ""
+      + "#version 300 es\n"
+      + "precision highp float;\n"
+      + "precision highp int;\n"
+      + "uniform highp sampler2D inputImage;\n"
+      + "out uvec4 fragmentColor;\n"
+      + "uvec4 load(ivec2 p)\n"
+      + "{\n"
+      + "    return uvec4(texelFetch(inputImage, p, 0) * 255.0 + 0.5);\n"
+      + "}\n"
+      + "void main()\n"
+      + "{\n"
+      + "    ivec2 p = ivec2(gl_FragCoord.xy);\n"
+      + "    uvec4 sum = load(p);\n"
+      + "    if (p.x >= 1) {\n"
+      + "        sum += load(p - ivec2(1, 0));\n"
+      + "    }\n"
+      + "    fragmentColor = sum;\n"
+      + "}\n";
+
+  private static final String STEP_SHADER = ""
+      + "#version 300 es\n"
+      + "precision highp float;\n"
+      + "precision highp int;\n"
+      + "uniform highp usampler2D table;\n"
+      + "uniform ivec2 stepOffset;\n"
+      + "out uvec4 fragmentColor;\n"
+      + "void main()\n"
+      + "{\n"
+      + "    ivec2 p = ivec2(gl_FragCoord.xy);\n"
+      + "    uvec4 sum = texelFetch(table, p, 0);\n"
+      + "    ivec2 q = p - stepOffset;\n"
+      + "    if (q.x >= 0 && q.y >= 0) {\n"
+      + "        sum += texelFetch(table, q, 0);\n"
+      + "    }\n"
+      + "    fragmentColor = sum;\n"
+      + "}\n";
+
+  private static final String BOX_SHADER = ""
+      + "#version 300 es\n"
+      + "precision highp float;\n"
+      + "precision highp int;\n"
+      + "uniform highp usampler2D table;\n"
+      + "uniform ivec2 size;\n"
+      + "uniform float radius;\n"
+      + "#ifdef RADIUS_MAP\n"
+      + "uniform sampler2D radiusMap;\n"
+      + "#endif\n"
+      + "out vec4 fragmentColor;\n"
+      + "uvec4 at(ivec2 p)\n"
+      + "{\n"
+      + "    return p.x < 0 || p.y < 0 ? uvec4(0u) : texelFetch(table, p, 0);\n"
+      + "}\n"
+      + "void main()\n"
+      + "{\n"
+      + "    ivec2 p = ivec2(gl_FragCoord.xy);\n"
+      + "#ifdef RADIUS_MAP\n"
+      + "    float r = texture(radiusMap, gl_FragCoord.xy / vec2(size)).r * radius;\n"
+      + "#else\n"
+      + "    float r = radius;\n"
+      + "#endif\n"
+      + "    int ir = int(r + 0.5);\n"
+      + "    ivec2 lo = max(p - ir - 1, ivec2(-1));\n"
+      + "    ivec2 hi = min(p + ir, size - 1);\n"
+      + "    uvec4 sum = at(hi) - at(ivec2(lo.x, hi.y)) - at(ivec2(hi.x, lo.y)) + at(lo);\n"
+      + "    float area = float((hi.x - lo.x) * (hi.y - lo.y));\n"
+      + "    fragmentColor = vec4(sum) / (area * 255.0);\n"
+      + "}\n";
+
+  private WritableTexture table;
+  private WritableTexture scratch;
+  private int width;
+  private int height;
+
+  /**
+   * Returns the radius of the box that, applied <code>iterations</code> times, approximates a
+   * Gaussian blur with standard deviation <code>sigma</code>.
+   */
+  public static int boxRadius(float sigma, int iterations) {
+    // the variance of a box of width w is (w^2 - 1) / 12, and adds up over iterations
+    final double width = Math.sqrt(12.0 * sigma * sigma / Math.max(1, iterations) + 1);
+    return Math.max(0, (int) Math.round((width - 1) / 2));
+  }
+
+  /**
+   * Builds the table from the first <code>width</code> by <code>height</code> texels of
+   * <code>source</code>, replacing the previous table.
+   */
+  public void build(Texture source, int width, int height) {
+    if (GLState.INSTANCE.getGlVersion() != GLState.GLVersion.GLES_30) {
+      throw new IllegalStateException("Summed-area tables require OpenGL ES 3.0.");
+    }
+    ensureTargets(width, height);
+    GLState.INSTANCE.setBlend(false, false);
+    GLState.INSTANCE.setScissorTest(false);
+
+    // the first pass converts to integers and adds the left neighbour
+    final Program init = Program.load("SummedAreaTableInit", VERTEX_SHADER, INIT_SHADER);
+    table.bindFramebuffer(WritableTexture.DISCARD_COLOR);
+    init.use();
+    source.bind(0);
+    init.bindInt("inputImage", 0);
+    GLState.INSTANCE.render();
+    table.unbindFramebuffer(true, WritableTexture.DISCARD_NONE);
+
+    // then each pass adds the partial sum 2^k texels away, horizontally then vertically
+    final Program step = Program.load("SummedAreaTableStep", VERTEX_SHADER, STEP_SHADER);
+    for (int offset = 2; offset < width; offset *= 2) {
+      step(step, offset, 0);
+    }
+    for (int offset = 1; offset < height; offset *= 2) {
+      step(step, 0, offset);
+    }
+  }
+
+  private void step(Program step, int x, int y) {
+    scratch.bindFramebuffer(WritableTexture.DISCARD_COLOR);
+    step.use();
+    table.bind(0);
+    step.bindInt("table", 0);
+    step.bindInt2("stepOffset", x, y);
+    GLState.INSTANCE.render();
+    scratch.unbindFramebuffer(true, WritableTexture.DISCARD_NONE);
+
+    final WritableTexture result = scratch;
+    scratch = table;
+    table = result;
+  }
+
+  /**
+   * Renders a box blur of the table's source with the given radius into <code>output</code>,
+   * which must be the same size.  Near the edges, only the texels within the image are averaged.
+   */
+  public void boxBlur(WritableTexture output, int radius) {
+    evaluate(output, radius, null);
+  }
+
+  /**
+   * Renders a box blur of the table's source into <code>output</code>, with the radius of each
+   * pixel read from the red channel of <code>radiusMap</code>, scaled from [0, 1] to
+   * [0, <code>maxRadius</code>].  The map is sampled with normalized coordinates, so it can be
+   * smaller than the output.
+   */
+  public void variableBlur(WritableTexture output, Texture radiusMap, float maxRadius) {
+    evaluate(output, maxRadius, radiusMap);
+  }
+
+  private void evaluate(WritableTexture output, float radius, Texture radiusMap) {
+    if (table == null) {
+      throw new IllegalStateException("The table hasn't been built.");
+    }
+    final Program program = radiusMap == null
+        ? Program.load("SummedAreaTableBox", VERTEX_SHADER, BOX_SHADER)
+        : Program.load("SummedAreaTableVariableBox", VERTEX_SHADER, BOX_SHADER,
+            Collections.singletonMap("RADIUS_MAP", "1"));
+
+    output.bindFramebuffer(WritableTexture.DISCARD_COLOR);
+    GLState.INSTANCE.setBlend(false, false);
+    program.use();
+    table.bind(0);
+    program.bindInt("table", 0);
+    if (radiusMap != null) {
+      radiusMap.bind(1);
+      program.bindInt("radiusMap", 1);
+    }
+    program.bindInt2("size", width, height);
+    program.bindFloat("radius", radius);
+    GLState.INSTANCE.render();
+    output.unbindFramebuffer(true, WritableTexture.DISCARD_NONE);
+  }
+
+  private void ensureTargets(int width, int height) {
+    this.width = width;
+    this.height = height;
+    if (table == null) {
+      table = new WritableTexture(width, height, false, false, GL_RGBA32UI);
+      scratch = new WritableTexture(width, height, false, false, GL_RGBA32UI);
+    } else {
+      table.resize(width, height);
+      scratch.resize(width, height);
+    }
+  }
+
+  /**
+   * Deletes the table's textures.
+   */
+  public void destroy() {
+    if (table != null) {
+      table.destroy();
+      scratch.destroy();
+      table = null;
+      scratch = null;
+    }
+  }
+}
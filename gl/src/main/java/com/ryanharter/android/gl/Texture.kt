@@ -1,23 +1,30 @@
 package com.ryanharter.android.gl
 
 import android.opengl.GLES20.GL_TEXTURE_2D
-import android.opengl.GLES20.glDeleteTextures
-import android.opengl.GLES20.glGenTextures
 
 /**
  * Created by rharter on 4/9/14.
  */
-open class Texture {
+open class Texture(
+  /**
+   * The GL name of an existing texture to wrap. Ownership is transferred to this object, so
+   * the texture will be deleted by [destroy].
+   */
+  name: Int
+) {
+
+  /**
+   * The GL name of the texture. This only changes if a subclass has to replace the texture to
+   * reallocate its storage.
+   */
+  var name = name
+    private set
 
   private var bindUnit = -1
 
-  val name: Int
+  private var resource = GLResources.track(this, GLResources.TEXTURE, name)
 
-  init {
-    val tmp = IntArray(1)
-    glGenTextures(1, tmp, 0)
-    name = tmp[0]
-  }
+  constructor() : this(GLResources.generate(GLResources.TEXTURE))
 
   open fun bind(unit: Int) {
     bindUnit = unit
@@ -31,8 +38,19 @@ open class Texture {
     }
   }
 
+  /**
+   * Replaces the underlying texture with [name], deleting the old one. Immutable storage can't be
+   * reallocated, so resizing it requires a new texture.
+   */
+  protected fun replaceName(name: Int) {
+    unbind()
+    GLResources.release(resource)
+    this.name = name
+    resource = GLResources.track(this, GLResources.TEXTURE, name)
+  }
+
   open fun destroy() {
-    glDeleteTextures(1, intArrayOf(name), 0)
+    GLResources.release(resource)
   }
 
 }
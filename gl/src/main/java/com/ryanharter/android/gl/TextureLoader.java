@@ -0,0 +1,407 @@
+package com.ryanharter.android.gl;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.opengl.EGL14;
+import android.opengl.EGLConfig;
+import android.opengl.EGLContext;
+import android.opengl.EGLDisplay;
+import android.opengl.EGLSurface;
+import android.os.Build;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingDeque;
+
+import static android.opengl.EGL14.EGL_ALPHA_SIZE;
+import static android.opengl.EGL14.EGL_BLUE_SIZE;
+import static android.opengl.EGL14.EGL_CONTEXT_CLIENT_VERSION;
+import static android.opengl.EGL14.EGL_GREEN_SIZE;
+import static android.opengl.EGL14.EGL_HEIGHT;
+import static android.opengl.EGL14.EGL_NONE;
+import static android.opengl.EGL14.EGL_NO_CONTEXT;
+import static android.opengl.EGL14.EGL_NO_SURFACE;
+import static android.opengl.EGL14.EGL_OPENGL_ES2_BIT;
+import static android.opengl.EGL14.EGL_PBUFFER_BIT;
+import static android.opengl.EGL14.EGL_RED_SIZE;
+import static android.opengl.EGL14.EGL_RENDERABLE_TYPE;
+import static android.opengl.EGL14.EGL_SURFACE_TYPE;
+import static android.opengl.EGL14.EGL_WIDTH;
+import static android.opengl.GLES20.GL_CLAMP_TO_EDGE;
+import static android.opengl.GLES20.GL_LINEAR;
+import static android.opengl.GLES20.GL_NO_ERROR;
+import static android.opengl.GLES20.GL_TEXTURE_2D;
+import static android.opengl.GLES20.GL_TEXTURE_MAG_FILTER;
+import static android.opengl.GLES20.GL_TEXTURE_MIN_FILTER;
+import static android.opengl.GLES20.GL_TEXTURE_WRAP_S;
+import static android.opengl.GLES20.GL_TEXTURE_WRAP_T;
+import static android.opengl.GLES20.glBindTexture;
+import static android.opengl.GLES20.glDeleteTextures;
+import static android.opengl.GLES20.glFinish;
+import static android.opengl.GLES20.glFlush;
+import static android.opengl.GLES20.glGenTextures;
+import static android.opengl.GLES20.glGenerateMipmap;
+import static android.opengl.GLES20.glGetError;
+import static android.opengl.GLES20.glTexParameteri;
+import static android.opengl.GLES30.GL_RGBA8;
+import static android.opengl.GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE;
+import static android.opengl.GLES30.GL_TIMEOUT_IGNORED;
+import static android.opengl.GLES30.glDeleteSync;
+import static android.opengl.GLES30.glFenceSync;
+import static android.opengl.GLES30.glTexStorage2D;
+import static android.opengl.GLES30.glWaitSync;
+import static android.opengl.GLUtils.texImage2D;
+import static android.opengl.GLUtils.texSubImage2D;
+
+/**
+ * Decodes and uploads textures on a background thread with its own EGL context, shared
+ * with the context that was current when the loader was created.
+ *
+ * Finished textures are handed to the render thread along with a fence, and
+ * {@link #dispatch()} makes the render context wait for that fence on the GPU
+ * (<code>glWaitSync</code>) instead of blocking the CPU.  On OpenGL ES 2.0, where fences
+ * aren't available, the worker finishes each upload with <code>glFinish</code> instead.
+ *
+ * The number of pending requests is bounded.  When a new request would exceed the
+ * bound the oldest pending request is considered stale and cancelled.
+ *
+ * The worker thread never touches {@link GLState}, which tracks the render context only.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public final class TextureLoader {
+
+  /**
+   * Provides the bitmap to upload.  This is called on the loader's worker thread, so it's
+   * the place to decode images.
+   */
+  public interface Source {
+    Bitmap load() throws Exception;
+  }
+
+  /**
+   * Receives the results of a request.  Called on the render thread from
+   * {@link #dispatch()}.
+   */
+  public interface Callback {
+    void onTextureLoaded(BitmapTexture texture);
+    void onTextureFailed(Exception e);
+  }
+
+  /**
+   * A pending texture load.
+   */
+  public static final class Request {
+    private final Source source;
+    private final boolean mipmap;
+    private final Callback callback;
+    private volatile boolean cancelled;
+
+    private int name;
+    private int width, height;
+    private long fence;
+    private Exception error;
+
+    private Request(Source source, boolean mipmap, Callback callback) {
+      this.source = source;
+      this.mipmap = mipmap;
+      this.callback = callback;
+    }
+
+    /**
+     * Cancels the request.  If the texture has already been uploaded it will be deleted
+     * instead of delivered.  This can be called from any thread.
+     */
+    public void cancel() {
+      cancelled = true;
+    }
+
+    public boolean isCancelled() {
+      return cancelled;
+    }
+  }
+
+  private static final int EGL_OPENGL_ES3_BIT_KHR = 0x40;
+
+  private final int maxPending;
+  private final boolean useFences;
+  private final LinkedBlockingDeque<Request> pending = new LinkedBlockingDeque<>();
+  private final ConcurrentLinkedQueue<Request> completed = new ConcurrentLinkedQueue<>();
+  private final Worker worker;
+
+  /**
+   * Creates a loader sharing the current EGL context.  This must be called on the render
+   * thread.
+   *
+   * @param maxPending The maximum number of requests waiting to be loaded.
+   */
+  public TextureLoader(int maxPending) {
+    if (maxPending < 1) {
+      throw new IllegalArgumentException("maxPending must be at least 1.");
+    }
+    this.maxPending = maxPending;
+    this.useFences = GLState.INSTANCE.getGlVersion() == GLState.GLVersion.GLES_30;
+
+    EGLDisplay display = EGL14.eglGetCurrentDisplay();
+    EGLContext shareContext = EGL14.eglGetCurrentContext();
+    if (shareContext == EGL_NO_CONTEXT) {
+      throw new IllegalStateException("TextureLoader must be created with a current EGL context.");
+    }
+    int[] version = new int[1];
+    EGL14.eglQueryContext(display, shareContext, EGL_CONTEXT_CLIENT_VERSION, version, 0);
+
+    worker = new Worker(display, shareContext, version[0]);
+    worker.start();
+  }
+
+  /**
+   * Queues a texture to be loaded on the worker thread.
+   *
+   * @return The request, which can be used to cancel the load.
+   */
+  public Request load(Source source, boolean mipmap, Callback callback) {
+    Request request = new Request(source, mipmap, callback);
+    synchronized (pending) {
+      while (pending.size() >= maxPending) {
+        Request stale = pending.pollFirst();
+        if (stale == null) {
+          break;
+        }
+        stale.cancel();
+      }
+      pending.offerLast(request);
+    }
+    return request;
+  }
+
+  /**
+   * Delivers loaded textures to their callbacks.  This must be called on the render thread,
+   * typically once per frame before rendering.
+   */
+  public void dispatch() {
+    Request request;
+    while ((request = completed.poll()) != null) {
+      if (request.error != null) {
+        if (!request.cancelled) {
+          request.callback.onTextureFailed(request.error);
+        }
+        continue;
+      }
+
+      if (request.cancelled) {
+        discard(request);
+        continue;
+      }
+
+      if (request.fence != 0) {
+        // the wait is queued on the GPU, deleting the sync is deferred until it's done
+        glWaitSync(request.fence, 0, GL_TIMEOUT_IGNORED);
+        glDeleteSync(request.fence);
+        request.fence = 0;
+      }
+      request.callback.onTextureLoaded(
+          new BitmapTexture(request.name, request.width, request.height, request.mipmap));
+    }
+  }
+
+  /**
+   * Stops the worker thread and releases any textures that haven't been delivered.  This
+   * must be called on the render thread.  The loader can't be used after this.
+   */
+  public void release() {
+    synchronized (pending) {
+      for (Request request : pending) {
+        request.cancel();
+      }
+      pending.clear();
+    }
+    worker.quit();
+
+    Request request;
+    while ((request = completed.poll()) != null) {
+      if (request.error == null) {
+        discard(request);
+      }
+    }
+  }
+
+  private void discard(Request request) {
+    if (request.fence != 0) {
+      glDeleteSync(request.fence);
+      request.fence = 0;
+    }
+    glDeleteTextures(1, new int[] { request.name }, 0);
+  }
+
+  private final class Worker extends Thread {
+
+    private final EGLDisplay display;
+    private final EGLContext shareContext;
+    private final int clientVersion;
+
+    private EGLContext context = EGL_NO_CONTEXT;
+    private EGLSurface surface = EGL_NO_SURFACE;
+
+    private final int[] tmp = new int[1];
+
+    Worker(EGLDisplay display, EGLContext shareContext, int clientVersion) {
+      super("TextureLoader");
+      this.display = display;
+      this.shareContext = shareContext;
+      this.clientVersion = clientVersion;
+    }
+
+    void quit() {
+      interrupt();
+      try {
+        join();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+
+    @Override public void run() {
+      Exception contextError = null;
+      if (!createContext()) {
+        releaseContext();
+        contextError = new IllegalStateException("TextureLoader failed to create a shared context.");
+      }
+
+      try {
+        while (!isInterrupted()) {
+          Request request = pending.takeFirst();
+          if (request.cancelled) {
+            continue;
+          }
+          if (contextError != null) {
+            request.error = contextError;
+            completed.offer(request);
+          } else if (process(request)) {
+            completed.offer(request);
+          }
+        }
+      } catch (InterruptedException e) {
+        // quit
+      } finally {
+        if (contextError == null) {
+          releaseContext();
+        }
+      }
+    }
+
+    /**
+     * Uploads the request's bitmap, returning true if the result should be delivered.
+     */
+    private boolean process(Request request) {
+      Bitmap bitmap;
+      try {
+        bitmap = request.source.load();
+      } catch (Exception e) {
+        request.error = e;
+        return true;
+      }
+      if (bitmap == null) {
+        request.error = new IllegalStateException("Source returned a null bitmap.");
+        return true;
+      }
+      if (request.cancelled) {
+        return false;
+      }
+
+      glGenTextures(1, tmp, 0);
+      request.name = tmp[0];
+      request.width = bitmap.getWidth();
+      request.height = bitmap.getHeight();
+
+      glBindTexture(GL_TEXTURE_2D, request.name);
+      glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+      glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+      glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+      glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+      if (useFences && bitmap.getConfig() == Bitmap.Config.ARGB_8888) {
+        int levels = request.mipmap ? TextureStorage.mipLevelCount(request.width, request.height) : 1;
+        glTexStorage2D(GL_TEXTURE_2D, levels, GL_RGBA8, request.width, request.height);
+        texSubImage2D(GL_TEXTURE_2D, 0, 0, 0, bitmap);
+      } else {
+        texImage2D(GL_TEXTURE_2D, 0, bitmap, 0);
+      }
+      if (request.mipmap) {
+        glGenerateMipmap(GL_TEXTURE_2D);
+      }
+      glBindTexture(GL_TEXTURE_2D, 0);
+
+      int error = glGetError();
+      if (error != GL_NO_ERROR) {
+        glDeleteTextures(1, tmp, 0);
+        request.error = new RuntimeException(String.format(
+            "GL Error [%s]: TextureLoader failed to upload bitmap of size[%dx%d]",
+            ErrorsKt.glErrorString(error), request.width, request.height));
+        return true;
+      }
+
+      if (useFences) {
+        request.fence = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+        // the fence has to reach the GPU before another context can wait on it
+        glFlush();
+      } else {
+        glFinish();
+      }
+      return true;
+    }
+
+    private boolean createContext() {
+      int renderableType = clientVersion >= 3 ? EGL_OPENGL_ES3_BIT_KHR : EGL_OPENGL_ES2_BIT;
+      int[] configAttribs = {
+          EGL_RENDERABLE_TYPE, renderableType,
+          EGL_SURFACE_TYPE, EGL_PBUFFER_BIT,
+          EGL_RED_SIZE, 8,
+          EGL_GREEN_SIZE, 8,
+          EGL_BLUE_SIZE, 8,
+          EGL_ALPHA_SIZE, 8,
+          EGL_NONE
+      };
+      EGLConfig[] configs = new EGLConfig[1];
+      int[] numConfigs = new int[1];
+      if (!EGL14.eglChooseConfig(display, configAttribs, 0, configs, 0, 1, numConfigs, 0)
+          || numConfigs[0] == 0) {
+        GLState.INSTANCE.getLogger().log("TextureLoader: No EGL config for shared context.");
+        return false;
+      }
+
+      int[] contextAttribs = { EGL_CONTEXT_CLIENT_VERSION, clientVersion, EGL_NONE };
+      context = EGL14.eglCreateContext(display, configs[0], shareContext, contextAttribs, 0);
+      if (context == null || context == EGL_NO_CONTEXT) {
+        GLState.INSTANCE.getLogger().log(String.format(
+            "TextureLoader: Failed to create shared context: 0x%x", EGL14.eglGetError()));
+        context = EGL_NO_CONTEXT;
+        return false;
+      }
+
+      int[] surfaceAttribs = { EGL_WIDTH, 1, EGL_HEIGHT, 1, EGL_NONE };
+      surface = EGL14.eglCreatePbufferSurface(display, configs[0], surfaceAttribs, 0);
+      if (surface == null || surface == EGL_NO_SURFACE) {
+        GLState.INSTANCE.getLogger().log(String.format(
+            "TextureLoader: Failed to create pbuffer surface: 0x%x", EGL14.eglGetError()));
+        surface = EGL_NO_SURFACE;
+        return false;
+      }
+
+      if (!EGL14.eglMakeCurrent(display, surface, surface, context)) {
+        GLState.INSTANCE.getLogger().log(String.format(
+            "TextureLoader: Failed to make shared context current: 0x%x", EGL14.eglGetError()));
+        return false;
+      }
+      return true;
+    }
+
+    private void releaseContext() {
+      EGL14.eglMakeCurrent(display, EGL_NO_SURFACE, EGL_NO_SURFACE, EGL_NO_CONTEXT);
+      if (surface != EGL_NO_SURFACE) {
+        EGL14.eglDestroySurface(display, surface);
+        surface = EGL_NO_SURFACE;
+      }
+      if (context != EGL_NO_CONTEXT) {
+        EGL14.eglDestroyContext(display, context);
+        context = EGL_NO_CONTEXT;
+      }
+      EGL14.eglReleaseThread();
+    }
+  }
+}
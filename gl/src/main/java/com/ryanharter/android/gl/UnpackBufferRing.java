@@ -0,0 +1,149 @@
+package com.ryanharter.android.gl;
+
+import android.annotation.TargetApi;
+import android.os.Build;
+import java.nio.ByteBuffer;
+
+import static android.opengl.GLES20.glBindBuffer;
+import static android.opengl.GLES20.glBufferData;
+import static android.opengl.GLES30.GL_ALREADY_SIGNALED;
+import static android.opengl.GLES30.GL_CONDITION_SATISFIED;
+import static android.opengl.GLES30.GL_MAP_INVALIDATE_BUFFER_BIT;
+import static android.opengl.GLES30.GL_MAP_UNSYNCHRONIZED_BIT;
+import static android.opengl.GLES30.GL_MAP_WRITE_BIT;
+import static android.opengl.GLES30.GL_PIXEL_UNPACK_BUFFER;
+import static android.opengl.GLES30.GL_STREAM_DRAW;
+import static android.opengl.GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE;
+import static android.opengl.GLES30.glClientWaitSync;
+import static android.opengl.GLES30.glDeleteSync;
+import static android.opengl.GLES30.glFenceSync;
+import static android.opengl.GLES30.glMapBufferRange;
+import static android.opengl.GLES30.glUnmapBuffer;
+
+/**
+ * A ring of <code>GL_PIXEL_UNPACK_BUFFER</code> objects used to stream pixel data to
+ * the GPU without stalling the GL thread.
+ *
+ * Each slot is protected by a fence, so a slot is only handed out again once the GPU
+ * has consumed the data previously copied into it.  This allows the CPU copy into one
+ * slot to overlap with the transfer out of the others.
+ *
+ * Requires OpenGL ES 3.0.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public final class UnpackBufferRing {
+
+  private final int slotSize;
+  private final int[] buffers;
+  private final long[] fences;
+  private final GLResources.Resource[] resources;
+  private int next;
+  private int mapped = -1;
+
+  /**
+   * Creates a new ring.
+   *
+   * @param slots The number of buffers in the ring.
+   * @param slotSize The size, in bytes, of each buffer.
+   */
+  public UnpackBufferRing(int slots, int slotSize) {
+    if (slots < 1) {
+      throw new IllegalArgumentException("A ring requires at least one slot.");
+    }
+    this.slotSize = slotSize;
+    this.buffers = new int[slots];
+    this.fences = new long[slots];
+    this.resources = new GLResources.Resource[slots];
+
+    for (int i = 0; i < slots; i++) {
+      resources[i] = GLResources.create(this, GLResources.BUFFER);
+      buffers[i] = resources[i].getName();
+      glBindBuffer(GL_PIXEL_UNPACK_BUFFER, buffers[i]);
+      glBufferData(GL_PIXEL_UNPACK_BUFFER, slotSize, null, GL_STREAM_DRAW);
+    }
+    glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+  }
+
+  /**
+   * Returns the size, in bytes, of each slot in the ring.
+   */
+  public int slotSize() {
+    return slotSize;
+  }
+
+  /**
+   * Returns the index of the next free slot, or -1 if the GPU hasn't yet finished
+   * reading from it.  This never blocks.
+   */
+  public int acquire() {
+    long fence = fences[next];
+    if (fence != 0) {
+      int status = glClientWaitSync(fence, 0, 0);
+      if (status != GL_ALREADY_SIGNALED && status != GL_CONDITION_SATISFIED) {
+        return -1;
+      }
+      glDeleteSync(fence);
+      fences[next] = 0;
+    }
+    return next;
+  }
+
+  /**
+   * Binds and maps <code>length</code> bytes of the slot for writing.  Since the slot's
+   * fence has already signaled the buffer is mapped unsynchronized, which avoids any
+   * implicit wait in the driver.
+   *
+   * The slot remains bound to <code>GL_PIXEL_UNPACK_BUFFER</code> until {@link #fence(int)}
+   * is called, so that uploads issued in the meantime source their data from it.
+   *
+   * @return The mapped buffer, or null if the driver failed to map it.
+   */
+  public ByteBuffer map(int slot, int length) {
+    if (length > slotSize) {
+      throw new IllegalArgumentException("Length " + length + " exceeds slot size " + slotSize);
+    }
+    glBindBuffer(GL_PIXEL_UNPACK_BUFFER, buffers[slot]);
+    ByteBuffer buffer = (ByteBuffer) glMapBufferRange(GL_PIXEL_UNPACK_BUFFER, 0, length,
+        GL_MAP_WRITE_BIT | GL_MAP_INVALIDATE_BUFFER_BIT | GL_MAP_UNSYNCHRONIZED_BIT);
+    if (buffer != null) {
+      mapped = slot;
+    }
+    return buffer;
+  }
+
+  /**
+   * Unmaps the currently mapped slot, leaving it bound.
+   */
+  public void unmap() {
+    if (mapped >= 0) {
+      glUnmapBuffer(GL_PIXEL_UNPACK_BUFFER);
+      mapped = -1;
+    }
+  }
+
+  /**
+   * Fences the slot after all uploads sourcing it have been issued, unbinds it and
+   * advances the ring.
+   */
+  public void fence(int slot) {
+    fences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+    next = (slot + 1) % buffers.length;
+  }
+
+  /**
+   * Deletes all buffers and pending fences.  The ring can't be used after this.
+   */
+  public void destroy() {
+    for (int i = 0; i < fences.length; i++) {
+      if (fences[i] != 0) {
+        glDeleteSync(fences[i]);
+        fences[i] = 0;
+      }
+    }
+    glBindBuffer(GL_PIXEL_UNPACK_BUFFER, 0);
+    for (GLResources.Resource resource : resources) {
+      GLResources.release(resource);
+    }
+  }
+}
@@ -7,13 +7,11 @@ import android.opengl.GLES20.GL_COLOR_BUFFER_BIT
 import android.opengl.GLES20.GL_DEPTH_ATTACHMENT
 import android.opengl.GLES20.GL_DEPTH_BUFFER_BIT
 import android.opengl.GLES20.GL_DEPTH_COMPONENT16
-import android.opengl.GLES20.GL_FLOAT
 import android.opengl.GLES20.GL_FRAMEBUFFER
-import android.opengl.GLES20.GL_FRAMEBUFFER_BINDING
 import android.opengl.GLES20.GL_FRAMEBUFFER_COMPLETE
 import android.opengl.GLES20.GL_LINEAR
+import android.opengl.GLES20.GL_NEAREST
 import android.opengl.GLES20.GL_RENDERBUFFER
-import android.opengl.GLES20.GL_RGB
 import android.opengl.GLES20.GL_RGBA
 import android.opengl.GLES20.GL_STENCIL_ATTACHMENT
 import android.opengl.GLES20.GL_STENCIL_BUFFER_BIT
@@ -24,7 +22,6 @@ import android.opengl.GLES20.GL_TEXTURE_MIN_FILTER
 import android.opengl.GLES20.GL_TEXTURE_WRAP_S
 import android.opengl.GLES20.GL_TEXTURE_WRAP_T
 import android.opengl.GLES20.GL_UNSIGNED_BYTE
-import android.opengl.GLES20.GL_VIEWPORT
 import android.opengl.GLES20.glBindBuffer
 import android.opengl.GLES20.glBindFramebuffer
 import android.opengl.GLES20.glBindRenderbuffer
@@ -37,53 +34,114 @@ import android.opengl.GLES20.glDeleteBuffers
 import android.opengl.GLES20.glFramebufferRenderbuffer
 import android.opengl.GLES20.glFramebufferTexture2D
 import android.opengl.GLES20.glGenBuffers
-import android.opengl.GLES20.glGenFramebuffers
-import android.opengl.GLES20.glGenRenderbuffers
 import android.opengl.GLES20.glGetError
-import android.opengl.GLES20.glGetIntegerv
 import android.opengl.GLES20.glReadPixels
-import android.opengl.GLES20.glRenderbufferStorage
-import android.opengl.GLES20.glTexImage2D
 import android.opengl.GLES20.glTexParameteri
 import android.opengl.GLES20.glViewport
 import android.opengl.GLES30.*
 import java.nio.ByteBuffer
 import java.nio.ByteOrder
 
-private fun format(internalFormat: Int) = when (internalFormat) {
-  GL_R8, GL_R8_SNORM, GL_R16F, GL_R32F -> GL_RED
-  GL_RG8, GL_RG8_SNORM, GL_RG16F, GL_RG32F -> GL_RG
-  GL_RGB8, GL_SRGB8, GL_RGB8_SNORM, GL_RGB16F, GL_RGB32F -> GL_RGB
-  GL_RGBA8, GL_SRGB8_ALPHA8, GL_RGBA8_SNORM, GL_RGBA16F, GL_RGBA32F -> GL_RGBA
-  else -> internalFormat
-}
-
-private fun type(internalFormat: Int) = when (internalFormat) {
-  GL_R16F, GL_RG16F, GL_RGB16F, GL_RGBA16F -> GL_HALF_FLOAT
-  GL_R32F, GL_RG32F, GL_RGB32F, GL_RGBA32F -> GL_FLOAT
-  else -> GL_UNSIGNED_BYTE
-}
-
 /**
  * An OpenGL texture that also has the appropriate framebuffers so that
  * it can be written to, as well as read from.
  *
  * The use of half float textures as render targets requires the `GL_EXT_color_buffer_half_float`
  * extension.
+ *
+ * When both depth and stencil are requested they share a packed `GL_DEPTH24_STENCIL8` buffer where
+ * supported. With `sharedDepthStencil`, the depth and stencil buffers are shared with every other
+ * sharing render target of the same size, which saves memory when the contents of those buffers
+ * don't need to survive from one pass to the next. Clear them at the start of each pass instead.
+ *
+ * With more than one `samples`, rendering is multisampled. Where `GL_EXT_multisampled_render_to_texture`
+ * is available the samples are resolved into the texture on-tile, without extra memory. Otherwise,
+ * on OpenGL ES 3.0, rendering goes to multisampled renderbuffers which are resolved into the
+ * texture with `glBlitFramebuffer` when the framebuffer is unbound. Without either, the texture is
+ * single sampled.
+ *
+ * Changes are tracked in [damage], so that only the regions that changed need to be redrawn with
+ * [drawDamage], and so that passes reading this texture know which of their pixels are affected.
+ *
+ * Creating a texture allocates its storage and clears it, unless it's `lazy`. Lazy textures are
+ * allocated when they're first bound, and attachments which that first bind discards, because the
+ * pass overwrites them, are never cleared.
+ *
+ * Binding and unbinding the framebuffer accept a set of `DISCARD_*` flags, which tell tile-based
+ * GPUs which attachments don't need to be loaded at the start of a pass, because it overwrites
+ * them, or stored at the end of a pass, because they won't be read again.
  */
 open class WritableTexture @JvmOverloads constructor(
-  protected val width: Int,
-  protected val height: Int,
-  hasDepth: Boolean = false,
-  hasStencil: Boolean = false,
-  internalFormat: Int = GL_RGBA,
-  format: Int = format(internalFormat),
-  type: Int = type(internalFormat)
+  width: Int,
+  height: Int,
+  private val hasDepth: Boolean = false,
+  private val hasStencil: Boolean = false,
+  /**
+   * The internal format of the color attachment, so that effects can allocate intermediate
+   * targets, or pick code paths, that match it.
+   */
+  val internalFormat: Int = GL_RGBA,
+  private val format: Int = format(internalFormat),
+  private val type: Int = type(internalFormat),
+  private val sharedDepthStencil: Boolean = false,
+  samples: Int = 1,
+  lazy: Boolean = false
 ) : Texture() {
 
+  /**
+   * The width of the region rendered to, which can be smaller than the allocated storage after
+   * a [resize] that kept it.
+   */
+  protected var width = width
+    private set
+
+  /**
+   * The height of the region rendered to, which can be smaller than the allocated storage after
+   * a [resize] that kept it.
+   */
+  protected var height = height
+    private set
+
+  private var storageWidth = width
+  private var storageHeight = height
+  private var immutableStorage = false
+  private val renderbufferFormats = IntArray(3)
+
   private val temp = IntArray(16)
 
-  private val buffers = IntArray(3)
+  // framebuffer, depth, stencil, multisampled framebuffer and color renderbuffer
+  private val buffers = intArrayOf(-1, -1, -1, -1, -1)
+  private val resources = arrayOfNulls<GLResources.Resource>(5)
+
+  private val requestedSamples = samples
+  private var allocated = false
+  private var multisampleMode = MULTISAMPLE_NONE
+  private var samples = 1
+
+  /**
+   * The regions of this texture that have changed, or need to be redrawn, in framebuffer
+   * coordinates. Damage accumulates until it's cleared, typically by the pass that consumes it.
+   */
+  val damage = DirtyRegion()
+  private var propagated: DirtyRegion? = null
+
+  /**
+   * A counter that changes whenever the contents of this texture may have changed, so that
+   * results derived from it can be cached until it does. It's incremented each time the
+   * framebuffer is bound for writing, and when the texture is resized, but not when it's bound
+   * with [bindFramebufferForRead].
+   */
+  var generation = 0L
+    private set
+
+  /**
+   * The [generation] of the last change that may have reached pixels outside of [damage], either
+   * because the framebuffer was bound by something other than [drawDamage], or because the
+   * contents were changed without it. While this is older than a result derived from this texture,
+   * only the damaged regions of that result are stale.
+   */
+  var undamagedGeneration = 0L
+    private set
 
   private var defaultFramebufferId: Int = 0
   private val defaultViewportSize = IntArray(4)
@@ -98,13 +156,24 @@ open class WritableTexture @JvmOverloads constructor(
    * Bitmap bitmap = exportTexture.getBitmap();
    * exportTexture.unbindFramebuffer();
   `</pre> *
+   *
+   * To read a texture that has already been rendered, bind it with [bindFramebufferForRead]
+   * instead, so that its [generation] doesn't change.
    *
    * @return The bitmap that was rendered to the texture.
    */
   val bitmap: Bitmap
     get() {
       val buffer = ByteBuffer.allocateDirect(width * height * 4)
-      glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, buffer)
+      if (multisampleMode == MULTISAMPLE_RESOLVE) {
+        // multisampled buffers can't be read directly
+        resolve()
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, buffers[0])
+        glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, buffer)
+        glBindFramebuffer(GL_READ_FRAMEBUFFER, buffers[3])
+      } else {
+        glReadPixels(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, buffer)
+      }
 
       val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
       bitmap.copyPixelsFromBuffer(buffer.rewind())
@@ -113,56 +182,69 @@ open class WritableTexture @JvmOverloads constructor(
     }
 
   init {
-    // record the old values
-    glGetIntegerv(GL_VIEWPORT, defaultViewportSize, 0)
-    glGetIntegerv(GL_FRAMEBUFFER_BINDING, temp, 0)
-    defaultFramebufferId = temp[0]
-
-    // generate the fbo and texture
-    glGenFramebuffers(1, buffers, 0)
-
-    GLState.bindTexture(0, GL_TEXTURE_2D, name)
+    if (!lazy) {
+      allocate(DISCARD_NONE, 0)
+    }
+  }
 
-    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR)
-    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR)
-    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE)
-    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE)
+  /**
+   * Allocates the texture and framebuffer, and clears the attachments that aren't in [discard].
+   * The bound framebuffer is preserved.
+   */
+  private fun allocate(discard: Int, unit: Int) {
+    allocated = true
+    val previousFramebuffer = GLState.getFramebuffer()
 
-    // create the texture in memory
-    glTexImage2D(GL_TEXTURE_2D, 0, internalFormat, width, height, 0, format, type, null)
-    glCheckError { "glTexImage2D(GL_TEXTURE_2D, 0, $internalFormat, $width, $height, 0, $format, $type, null)" }
+    // generate the fbo and texture
+    resources[0] = GLResources.create(this, GLResources.FRAMEBUFFER)
+    buffers[0] = resources[0]!!.name
 
-    // unbind the texture before attaching it to the framebuffer
-    GLState.bindTexture(0, GL_TEXTURE_2D, 0)
+    storageWidth = width
+    storageHeight = height
+    allocateColor(unit)
 
     // create the framebuffer
-    bindFramebuffer()
+    GLState.bindFramebuffer(buffers[0])
 
-    // attach the texture buffer to color
-    glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, name, 0)
-    glCheckError { "WritableTexture: glFramebufferTexture2D" }
+    multisampleMode = chooseMultisampleMode(requestedSamples, temp)
+    samples = temp[0]
+    val colorFormat = sizedFormat(internalFormat, format, type)
+    if (multisampleMode == MULTISAMPLE_RESOLVE && colorFormat == 0) {
+      GLState.logger.log("WritableTexture: No multisampled equivalent of format $internalFormat.")
+      multisampleMode = MULTISAMPLE_NONE
+      samples = 1
+    }
 
-    if (hasDepth) {
-      glGenRenderbuffers(1, buffers, 1)
+    attachColor()
 
-      // create and bind the depth buffer
-      glBindRenderbuffer(GL_RENDERBUFFER, buffers[1])
-      glRenderbufferStorage(GL_RENDERBUFFER, GL_DEPTH_COMPONENT16, width, height)
+    if (multisampleMode == MULTISAMPLE_RESOLVE) {
+      // the texture's framebuffer is only the resolve target, render to a multisampled one
+      resources[3] = GLResources.create(this, GLResources.FRAMEBUFFER)
+      buffers[3] = resources[3]!!.name
+      resources[4] = GLResources.create(this, GLResources.RENDERBUFFER)
+      buffers[4] = resources[4]!!.name
+      glBindRenderbuffer(GL_RENDERBUFFER, buffers[4])
+      renderbufferStorage(multisampleMode, samples, colorFormat, width, height)
       glBindRenderbuffer(GL_RENDERBUFFER, 0)
-      glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, buffers[1])
-    } else {
-      buffers[1] = -1
+
+      GLState.bindFramebuffer(buffers[3])
+      glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_RENDERBUFFER, buffers[4])
+      glCheckError { "WritableTexture: Multisampled color buffer creation failed." }
     }
 
-    if (hasStencil) {
-      glGenRenderbuffers(1, buffers, 2)
-      glBindRenderbuffer(GL_RENDERBUFFER, buffers[2])
-      glRenderbufferStorage(GL_RENDERBUFFER, GL_STENCIL_INDEX8, width, height)
-      glBindRenderbuffer(GL_RENDERBUFFER, 0)
-      glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_STENCIL_ATTACHMENT, GL_RENDERBUFFER, buffers[2])
+    if (hasDepth && hasStencil && supportsPackedDepthStencil()) {
+      // a single packed buffer attached to both
+      buffers[1] = createRenderbuffer(1, GL_DEPTH24_STENCIL8)
+      buffers[2] = buffers[1]
     } else {
-      buffers[2] = -1
+      if (hasDepth) {
+        buffers[1] = createRenderbuffer(1, GL_DEPTH_COMPONENT16)
+      }
+      if (hasStencil) {
+        buffers[2] = createRenderbuffer(2, GL_STENCIL_INDEX8)
+      }
     }
+    attachDepthStencil()
 
     glCheckError { "WritableTexture: Framebuffer creation failed."}
 
@@ -178,18 +260,194 @@ open class WritableTexture @JvmOverloads constructor(
       }
       GLState.logger.log("Failed to make complete Framebuffer: $errorString")
     } else {
-      // clear the texture
-      glClearColor(0f, 0f, 0f, 0f)
-      glClearStencil(0)
-      glClear(GL_COLOR_BUFFER_BIT or GL_DEPTH_BUFFER_BIT or GL_STENCIL_BUFFER_BIT)
-      glCheckError { "WritableTexture: Initial framebuffer clear on creation." }
+      // clear whatever the first pass won't overwrite
+      var mask = 0
+      if (discard and DISCARD_COLOR == 0) {
+        mask = mask or GL_COLOR_BUFFER_BIT
+      }
+      if (buffers[1] != -1 && discard and DISCARD_DEPTH == 0) {
+        mask = mask or GL_DEPTH_BUFFER_BIT
+      }
+      if (buffers[2] != -1 && discard and DISCARD_STENCIL == 0) {
+        mask = mask or GL_STENCIL_BUFFER_BIT
+      }
+      if (mask and GL_COLOR_BUFFER_BIT != 0 && isIntegerFormat(format)) {
+        // integer buffers can't be cleared with glClear
+        GLState.setScissorTest(false)
+        glClearBufferuiv(GL_COLOR, 0, IntArray(4), 0)
+        mask = mask and GL_COLOR_BUFFER_BIT.inv()
+      }
+      if (mask != 0) {
+        GLState.setScissorTest(false)
+        glClearColor(0f, 0f, 0f, 0f)
+        glClearStencil(0)
+        glClear(mask)
+        glCheckError { "WritableTexture: Initial framebuffer clear on creation." }
+        if (multisampleMode == MULTISAMPLE_RESOLVE && mask and GL_COLOR_BUFFER_BIT != 0) {
+          resolve()
+        }
+      }
     }
 
-    // reset the old framebuffer and viewport
-    unbindFramebuffer()
+    // reset the old framebuffer
+    GLState.bindFramebuffer(previousFramebuffer)
     glCheckError { "WritableTexture: Rebind original framebuffer" }
   }
 
+  /**
+   * Resizes the texture in place, keeping its framebuffer.
+   *
+   * If [keepStorage] is true and the new size fits within the current storage, nothing is
+   * reallocated and rendering is limited to the new size by the viewport. Textures sampling this
+   * one then need to scale their texture coordinates by [contentScaleX] and [contentScaleY].
+   * Otherwise the storage is reallocated at the new size.
+   *
+   * The contents are undefined after a resize, and the whole texture is marked as damaged.
+   */
+  @JvmOverloads
+  open fun resize(width: Int, height: Int, keepStorage: Boolean = false) {
+    if (width == this.width && height == this.height) {
+      return
+    }
+    this.width = width
+    this.height = height
+    generation++
+    damage.clear()
+    damage.add(0, 0, width, height)
+
+    val fits = width <= storageWidth && height <= storageHeight
+    if (allocated && !(keepStorage && fits)) {
+      reallocate()
+    }
+  }
+
+  /**
+   * The fraction of the storage's width that's rendered to, which is less than 1 after a [resize]
+   * that kept a larger storage.
+   */
+  val contentScaleX: Float
+    get() = width.toFloat() / storageWidth
+
+  /**
+   * The fraction of the storage's height that's rendered to, which is less than 1 after a
+   * [resize] that kept a larger storage.
+   */
+  val contentScaleY: Float
+    get() = height.toFloat() / storageHeight
+
+  /**
+   * Called while the texture's framebuffer is bound, after its storage has been reallocated by
+   * [resize], so that subclasses can reallocate their own attachments.
+   */
+  protected open fun onReallocate() {
+  }
+
+  private fun reallocate() {
+    val previousFramebuffer = GLState.getFramebuffer()
+    storageWidth = width
+    storageHeight = height
+
+    // immutable storage can't be respecified, so it needs a new texture
+    val replace = immutableStorage
+    if (replace) {
+      replaceName(GLResources.generate(GLResources.TEXTURE))
+    }
+    allocateColor(0)
+
+    GLState.bindFramebuffer(buffers[0])
+    if (replace) {
+      attachColor()
+    }
+    onReallocate()
+
+    if (buffers[4] != -1) {
+      glBindRenderbuffer(GL_RENDERBUFFER, buffers[4])
+      renderbufferStorage(multisampleMode, samples, sizedFormat(internalFormat, format, type),
+        width, height)
+      glBindRenderbuffer(GL_RENDERBUFFER, 0)
+      GLState.bindFramebuffer(buffers[3])
+    }
+
+    val packed = buffers[1] != -1 && buffers[1] == buffers[2]
+    for (i in 1..2) {
+      if (buffers[i] == -1 || (i == 2 && packed)) {
+        continue
+      }
+      if (sharedDepthStencil) {
+        SharedRenderbuffers.release(buffers[i])
+        buffers[i] = createRenderbuffer(i, renderbufferFormats[i])
+      } else {
+        glBindRenderbuffer(GL_RENDERBUFFER, buffers[i])
+        renderbufferStorage(multisampleMode, samples, renderbufferFormats[i], width, height)
+        glBindRenderbuffer(GL_RENDERBUFFER, 0)
+      }
+    }
+    if (packed) {
+      buffers[2] = buffers[1]
+    }
+    if (sharedDepthStencil) {
+      attachDepthStencil()
+    }
+    glCheckError { "WritableTexture: Resize to $width x $height failed." }
+
+    GLState.bindFramebuffer(previousFramebuffer)
+  }
+
+  private fun allocateColor(unit: Int) {
+    GLState.bindTexture(unit, GL_TEXTURE_2D, name)
+
+    // integer textures aren't filterable, and are incomplete with linear filtering
+    val filter = if (isIntegerFormat(format)) GL_NEAREST else GL_LINEAR
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, filter)
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, filter)
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE)
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE)
+
+    // create the texture in memory
+    immutableStorage = texStorage2D(GL_TEXTURE_2D, 1, internalFormat, width, height, format, type)
+    glCheckError { "texStorage2D(GL_TEXTURE_2D, 1, $internalFormat, $width, $height, $format, $type)" }
+
+    // unbind the texture before attaching it to the framebuffer
+    GLState.bindTexture(unit, GL_TEXTURE_2D, 0)
+  }
+
+  private fun attachColor() {
+    if (multisampleMode == MULTISAMPLE_IMPLICIT) {
+      GLES2Fix.glFramebufferTexture2DMultisampleEXT(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0,
+        GL_TEXTURE_2D, name, 0, samples)
+    } else {
+      glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, name, 0)
+    }
+    glCheckError { "WritableTexture: glFramebufferTexture2D" }
+  }
+
+  private fun attachDepthStencil() {
+    if (buffers[1] != -1) {
+      glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_DEPTH_ATTACHMENT, GL_RENDERBUFFER, buffers[1])
+    }
+    if (buffers[2] != -1) {
+      glFramebufferRenderbuffer(GL_FRAMEBUFFER, GL_STENCIL_ATTACHMENT, GL_RENDERBUFFER, buffers[2])
+    }
+  }
+
+  /**
+   * Allocates a lazy texture that hasn't been bound yet, without clearing its color, for writers
+   * that don't go through the framebuffer, like image stores. Call this before binding [name]
+   * to anything but the framebuffer, since it's not allocated until then.
+   */
+  fun ensureAllocated() {
+    if (!allocated) {
+      allocate(DISCARD_COLOR, 0)
+    }
+  }
+
+  override fun bind(unit: Int) {
+    if (!allocated) {
+      allocate(DISCARD_NONE, unit)
+    }
+    super.bind(unit)
+  }
+
   fun getBitmapPbo(width: Int, height: Int): Bitmap {
     val buffers = IntArray(1)
     glGenBuffers(1, buffers, 0)
@@ -215,6 +473,8 @@ open class WritableTexture @JvmOverloads constructor(
     glUnmapBuffer(GL_PIXEL_PACK_BUFFER)
     glBindBuffer(GL_PIXEL_PACK_BUFFER, 0)
     glGetError()
+    glDeleteBuffers(1, buffers, 0)
+    out.destroy()
 
     val bitmap = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888)
     bitmap.copyPixelsFromBuffer(buffer.rewind())
@@ -222,27 +482,116 @@ open class WritableTexture @JvmOverloads constructor(
     return bitmap
   }
 
+  /**
+   * The number of samples per pixel rendered, which is 1 if the texture isn't multisampled.
+   */
+  val sampleCount: Int
+    get() = samples
+
+  /**
+   * Marks the contents as changed by something other than rendering to the framebuffer, like
+   * image stores or copies into the texture, incrementing [generation].
+   */
+  fun contentsChanged() {
+    generation++
+    undamagedGeneration = generation
+  }
+
   /**
    * Executes all drawing commands to the current framebuffer.
+   *
+   * @param discardOnBind `DISCARD_*` flags for the attachments that [body] completely overwrites.
+   * @param discardOnUnbind `DISCARD_*` flags for the attachments that aren't needed after [body].
    */
-  fun draw(body: () -> Unit) {
-    bindFramebuffer()
+  @JvmOverloads
+  fun draw(discardOnBind: Int = DISCARD_NONE, discardOnUnbind: Int = DISCARD_NONE, body: () -> Unit) {
+    bindFramebuffer(discardOnBind)
     body()
-    unbindFramebuffer()
+    unbindFramebuffer(true, discardOnUnbind)
+  }
+
+  /**
+   * Executes [body] once for each rectangle in [damage], with the framebuffer bound and the
+   * scissor set to that rectangle, so that only the damaged pixels are redrawn. Does nothing if
+   * there is no damage.
+   *
+   * The damage is left in place so that it can be propagated to downstream passes.
+   */
+  @JvmOverloads
+  fun drawDamage(discardOnUnbind: Int = DISCARD_NONE, body: () -> Unit) {
+    if (damage.isEmpty) {
+      return
+    }
+    GLState.getViewport(defaultViewportSize)
+    defaultFramebufferId = GLState.getFramebuffer()
+    bindRenderFramebuffer(DISCARD_NONE, damageOnly = true)
+    try {
+      for (i in 0 until damage.size()) {
+        GLState.setScissor(damage, i)
+        body()
+      }
+    } finally {
+      GLState.setScissorTest(false)
+      unbindFramebuffer(true, discardOnUnbind)
+    }
+  }
+
+  /**
+   * Adds the damage of this texture, grown by [radius] pixels on each side, to the damage of
+   * [downstream], which is rendered by sampling this texture. Use the radius of the filter
+   * applied by the pass, such as a blur, or 0 for passes that sample a single pixel.
+   */
+  @JvmOverloads
+  fun propagateDamage(downstream: WritableTexture, radius: Int = 0) {
+    val region = propagated ?: DirtyRegion().also { propagated = it }
+    region.clear()
+    region.add(damage)
+    region.expand(radius, downstream.width, downstream.height)
+    downstream.damage.add(region)
   }
 
   /**
    * Binds the frame buffer of this texture for writing.
+   *
+   * @param discard `DISCARD_*` flags for the attachments whose previous contents aren't needed,
+   * because the pass will overwrite them.
    */
-  fun bindFramebuffer() {
+  @JvmOverloads
+  fun bindFramebuffer(discard: Int = DISCARD_NONE) {
     // get the old values
     GLState.getViewport(defaultViewportSize)
-    glGetIntegerv(GL_FRAMEBUFFER_BINDING, temp, 0)
-    defaultFramebufferId = temp[0]
+    defaultFramebufferId = GLState.getFramebuffer()
 
-    // bind the framebuffer
-    GLState.bindFramebuffer(buffers[0])
-    GLState.setViewport(0, 0, width, height)
+    bindRenderFramebuffer(discard)
+  }
+
+  /**
+   * Binds the frame buffer of this texture only to read from it, like with [bitmap] or
+   * `glReadPixels`, which doesn't count as a change to its contents. Unbind it with
+   * [unbindFramebuffer] as usual.
+   */
+  fun bindFramebufferForRead() {
+    GLState.getViewport(defaultViewportSize)
+    defaultFramebufferId = GLState.getFramebuffer()
+
+    bindRenderFramebuffer(DISCARD_NONE, write = false)
+  }
+
+  /**
+   * Finishes rendering to this texture and binds the framebuffer of [next], without restoring
+   * the previous framebuffer in between. Unbinding [next] restores the framebuffer that was bound
+   * before this one.
+   *
+   * @param discard `DISCARD_*` flags for the attachments of this texture that aren't needed anymore.
+   * @param nextDiscard `DISCARD_*` flags for the attachments of [next] that will be overwritten.
+   */
+  @JvmOverloads
+  fun switchFramebuffer(next: WritableTexture, discard: Int = DISCARD_NONE,
+    nextDiscard: Int = DISCARD_NONE) {
+    finishRendering(discard)
+    next.defaultFramebufferId = defaultFramebufferId
+    System.arraycopy(defaultViewportSize, 0, next.defaultViewportSize, 0, 4)
+    next.bindRenderFramebuffer(nextDiscard)
   }
 
   /**
@@ -250,9 +599,12 @@ open class WritableTexture @JvmOverloads constructor(
    *
    * @param restoreState True to restore the previous viewport/framebuffer state, false to
    * restore the default framebuffer;
+   * @param discard `DISCARD_*` flags for the attachments whose contents aren't needed anymore,
+   * typically [DISCARD_DEPTH] and [DISCARD_STENCIL].
    */
   @JvmOverloads
-  fun unbindFramebuffer(restoreState: Boolean = true) {
+  fun unbindFramebuffer(restoreState: Boolean = true, discard: Int = DISCARD_NONE) {
+    finishRendering(discard)
     if (restoreState) {
       GLState.bindFramebuffer(defaultFramebufferId)
       GLState.setViewport(defaultViewportSize[0], defaultViewportSize[1], defaultViewportSize[2],
@@ -262,8 +614,105 @@ open class WritableTexture @JvmOverloads constructor(
     }
   }
 
+  /**
+   * The number of color attachments invalidated by [DISCARD_COLOR].
+   */
+  protected open val colorAttachmentCount: Int
+    get() = 1
+
+  private fun supportsPackedDepthStencil() =
+    GLState.getGlVersion() == GLState.GLVersion.GLES_30 ||
+      GLState.hasExtension("GL_OES_packed_depth_stencil")
+
+  private fun createRenderbuffer(index: Int, internalFormat: Int): Int {
+    renderbufferFormats[index] = internalFormat
+    if (sharedDepthStencil) {
+      return SharedRenderbuffers.acquire(internalFormat, width, height, multisampleMode, samples)
+    }
+
+    val resource = GLResources.create(this, GLResources.RENDERBUFFER)
+    resources[index] = resource
+    glBindRenderbuffer(GL_RENDERBUFFER, resource.name)
+    renderbufferStorage(multisampleMode, samples, internalFormat, width, height)
+    glBindRenderbuffer(GL_RENDERBUFFER, 0)
+    return resource.name
+  }
+
+  private fun bindRenderFramebuffer(discard: Int, write: Boolean = true,
+    damageOnly: Boolean = false) {
+    if (!allocated) {
+      allocate(discard, 0)
+    }
+    if (write) {
+      generation++
+      if (!damageOnly) {
+        undamagedGeneration = generation
+      }
+    }
+    GLState.bindFramebuffer(if (buffers[3] != -1) buffers[3] else buffers[0])
+    GLState.setViewport(0, 0, width, height)
+    invalidateAttachments(discard)
+  }
+
+  private fun finishRendering(discard: Int) {
+    if (multisampleMode == MULTISAMPLE_RESOLVE) {
+      resolve()
+    }
+    invalidateAttachments(discard)
+  }
+
+  /**
+   * Resolves the bound multisampled framebuffer into the texture, leaving the multisampled
+   * framebuffer bound.
+   */
+  private fun resolve() {
+    glBindFramebuffer(GL_DRAW_FRAMEBUFFER, buffers[0])
+    glBlitFramebuffer(0, 0, width, height, 0, 0, width, height, GL_COLOR_BUFFER_BIT, GL_NEAREST)
+    glBindFramebuffer(GL_DRAW_FRAMEBUFFER, buffers[3])
+  }
+
+  private fun invalidateAttachments(discard: Int) {
+    if (discard == DISCARD_NONE) {
+      return
+    }
+    var count = 0
+    if (discard and DISCARD_COLOR != 0) {
+      for (i in 0 until colorAttachmentCount) {
+        temp[count++] = GL_COLOR_ATTACHMENT0 + i
+      }
+    }
+    if (discard and DISCARD_DEPTH != 0 && buffers[1] != -1) {
+      temp[count++] = GL_DEPTH_ATTACHMENT
+    }
+    if (discard and DISCARD_STENCIL != 0 && buffers[2] != -1) {
+      temp[count++] = GL_STENCIL_ATTACHMENT
+    }
+    if (count > 0) {
+      GLState.invalidateFramebuffer(temp, count)
+    }
+  }
+
   override fun destroy() {
     super.destroy()
-    glDeleteBuffers(2, buffers, 0)
+    resources.forEach { GLResources.release(it) }
+    if (sharedDepthStencil) {
+      if (buffers[1] != -1) {
+        SharedRenderbuffers.release(buffers[1])
+      }
+      if (buffers[2] != -1 && buffers[2] != buffers[1]) {
+        SharedRenderbuffers.release(buffers[2])
+      }
+      buffers[1] = -1
+      buffers[2] = -1
+    }
+  }
+
+  companion object {
+    const val DISCARD_NONE = 0
+    const val DISCARD_COLOR = 1
+    const val DISCARD_DEPTH = 2
+    const val DISCARD_STENCIL = 4
+    const val DISCARD_DEPTH_STENCIL = DISCARD_DEPTH or DISCARD_STENCIL
+    const val DISCARD_ALL = DISCARD_COLOR or DISCARD_DEPTH_STENCIL
   }
 }
\ No newline at end of file
@@ -0,0 +1,315 @@
+package com.ryanharter.android.gl.export;
+
+import android.annotation.TargetApi;
+import android.graphics.Bitmap;
+import android.os.Build;
+import com.ryanharter.android.gl.GLResources;
+import com.ryanharter.android.gl.GLState;
+import com.ryanharter.android.gl.exceptions.GLException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static android.opengl.GLES20.GL_CLAMP_TO_EDGE;
+import static android.opengl.GLES20.GL_COLOR_ATTACHMENT0;
+import static android.opengl.GLES20.GL_FRAMEBUFFER;
+import static android.opengl.GLES20.GL_LINEAR;
+import static android.opengl.GLES20.GL_NO_ERROR;
+import static android.opengl.GLES20.GL_RGBA;
+import static android.opengl.GLES20.GL_TEXTURE_2D;
+import static android.opengl.GLES20.GL_TEXTURE_MAG_FILTER;
+import static android.opengl.GLES20.GL_TEXTURE_MIN_FILTER;
+import static android.opengl.GLES20.GL_TEXTURE_WRAP_S;
+import static android.opengl.GLES20.GL_TEXTURE_WRAP_T;
+import static android.opengl.GLES20.GL_UNSIGNED_BYTE;
+import static android.opengl.GLES20.glBindBuffer;
+import static android.opengl.GLES20.glBufferData;
+import static android.opengl.GLES20.glFramebufferTexture2D;
+import static android.opengl.GLES20.glTexImage2D;
+import static android.opengl.GLES20.glTexParameteri;
+import static android.opengl.GLES30.GL_MAP_READ_BIT;
+import static android.opengl.GLES30.GL_PIXEL_PACK_BUFFER;
+import static android.opengl.GLES30.GL_STREAM_READ;
+import static android.opengl.GLES30.GL_SYNC_FLUSH_COMMANDS_BIT;
+import static android.opengl.GLES30.GL_SYNC_GPU_COMMANDS_COMPLETE;
+import static android.opengl.GLES30.GL_TIMEOUT_EXPIRED;
+import static android.opengl.GLES30.GL_WAIT_FAILED;
+import static android.opengl.GLES30.glClientWaitSync;
+import static android.opengl.GLES30.glDeleteSync;
+import static android.opengl.GLES30.glFenceSync;
+import static android.opengl.GLES30.glMapBufferRange;
+import static android.opengl.GLES30.glReadBuffer;
+import static android.opengl.GLES30.glUnmapBuffer;
+import static com.ryanharter.android.gl.GLES2Fix.glReadPixelsPBO;
+
+/**
+ * Exports GL state to bitmaps without waiting for the GPU.
+ *
+ * Each export reads the framebuffer into the next of a ring of pixel pack buffers and fences
+ * it, then returns immediately.  The buffer is only mapped once {@link #poll()} finds that its
+ * fence has signaled, so the copy happens after the GPU has finished rendering and
+ * transferring the frame, and the render thread never stalls on it.  With several buffers,
+ * exports can be issued every frame while earlier ones are still in flight.
+ *
+ * Callbacks are invoked on the GL thread, from {@link #poll()} or {@link #finish()}, in the
+ * order the exports were issued.
+ *
+ * Requires OpenGL ES 3.0.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public final class AsyncExporter {
+
+  /**
+   * Receives the results of exports.
+   */
+  public interface Callback {
+
+    /**
+     * Called with the exported image once it has been read back.
+     */
+    void onExported(Bitmap bitmap);
+
+    /**
+     * Called if the image couldn't be read back.
+     */
+    void onError(GLException exception);
+  }
+
+  /** The time to wait at once for a fence in {@link #finish()}, in nanoseconds. */
+  private static final long FINISH_TIMEOUT = 1_000_000_000L;
+
+  private final int width;
+  private final int height;
+  private final int[] ids = new int[2];
+  private final GLResources.Resource[] resources = new GLResources.Resource[2];
+
+  private final int[] buffers;
+  private final GLResources.Resource[] bufferResources;
+  private final long[] fences;
+  private final Bitmap[] results;
+  private final Callback[] callbacks;
+  private int first;
+  private int pending;
+  private boolean destroyed;
+
+  /**
+   * @param buffers The number of exports that can be in flight at once.
+   */
+  public AsyncExporter(int width, int height, int buffers) {
+    if (GLState.INSTANCE.getGlVersion() != GLState.GLVersion.GLES_30) {
+      throw new IllegalStateException("Asynchronous exports require OpenGL ES 3.0.");
+    }
+    if (buffers < 1) {
+      throw new IllegalArgumentException("An exporter requires at least one buffer.");
+    }
+    this.width = width;
+    this.height = height;
+    this.buffers = new int[buffers];
+    this.bufferResources = new GLResources.Resource[buffers];
+    this.fences = new long[buffers];
+    this.results = new Bitmap[buffers];
+    this.callbacks = new Callback[buffers];
+
+    for (int i = 0; i < buffers; i++) {
+      bufferResources[i] = GLResources.create(this, GLResources.BUFFER);
+      this.buffers[i] = bufferResources[i].getName();
+      glBindBuffer(GL_PIXEL_PACK_BUFFER, this.buffers[i]);
+      glBufferData(GL_PIXEL_PACK_BUFFER, 4 * width * height, null, GL_STREAM_READ);
+    }
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+
+    resources[0] = GLResources.create(this, GLResources.FRAMEBUFFER);
+    resources[1] = GLResources.create(this, GLResources.TEXTURE);
+    ids[0] = resources[0].getName();
+    ids[1] = resources[1].getName();
+
+    GLState.INSTANCE.bindTexture(0, GL_TEXTURE_2D, ids[1]);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MAG_FILTER, GL_LINEAR);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_S, GL_CLAMP_TO_EDGE);
+    glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_WRAP_T, GL_CLAMP_TO_EDGE);
+
+    glTexImage2D(GL_TEXTURE_2D, 0, GL_RGBA, width, height, 0, GL_RGBA, GL_UNSIGNED_BYTE, null);
+    GLState.INSTANCE.bindTexture(0, GL_TEXTURE_2D, 0);
+
+    GLState.INSTANCE.bindFramebuffer(ids[0]);
+    glFramebufferTexture2D(GL_FRAMEBUFFER, GL_COLOR_ATTACHMENT0, GL_TEXTURE_2D, ids[1], 0);
+    GLState.INSTANCE.bindFramebuffer(0);
+  }
+
+  /**
+   * Begins the recording sequence.  Draw calls between <code>begin()</code> and
+   * {@link #export(Callback)} will be drawn to an internal framebuffer to be exported.
+   */
+  public void begin() {
+    GLState.INSTANCE.bindFramebuffer(ids[0]);
+  }
+
+  /**
+   * Starts reading back the state that has been drawn since {@link #begin()}, passing it to
+   * <code>callback</code> in a new Bitmap once it's available.
+   *
+   * @see #export(Bitmap, Callback)
+   */
+  public boolean export(Callback callback) {
+    return export(null, callback);
+  }
+
+  /**
+   * Starts reading back the state that has been drawn since {@link #begin()}, passing it to
+   * <code>callback</code> in <code>result</code> once it's available.  This never blocks.
+   *
+   * This ends the current recording sequence.  Call {@link #begin()} to start a new one.
+   *
+   * @param result The bitmap to write to, or null to create one.
+   * @return false if every buffer is still in flight, in which case nothing is exported.
+   */
+  public boolean export(Bitmap result, Callback callback) {
+    if (destroyed) {
+      throw new IllegalStateException("Exporter has already been destroyed.");
+    }
+    if (result != null) {
+      if (result.getWidth() != width || result.getHeight() != height) {
+        throw new IllegalArgumentException("Result bitmap must match exporter dimensions.");
+      }
+      if (result.getConfig() != Bitmap.Config.ARGB_8888) {
+        throw new IllegalArgumentException("Result bitmap must have ARGB_8888 config.");
+      }
+    }
+
+    if (pending == buffers.length) {
+      poll();
+      if (pending == buffers.length) {
+        GLState.INSTANCE.bindFramebuffer(0);
+        return false;
+      }
+    }
+
+    final int slot = (first + pending) % buffers.length;
+    GLState.INSTANCE.bindFramebuffer(ids[0]);
+    glReadBuffer(GL_COLOR_ATTACHMENT0);
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, buffers[slot]);
+    glReadPixelsPBO(0, 0, width, height, GL_RGBA, GL_UNSIGNED_BYTE, 0);
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    fences[slot] = glFenceSync(GL_SYNC_GPU_COMMANDS_COMPLETE, 0);
+    results[slot] = result;
+    callbacks[slot] = callback;
+    pending++;
+
+    GLState.INSTANCE.bindFramebuffer(0);
+    return true;
+  }
+
+  /**
+   * Returns the number of exports that haven't been delivered yet.
+   */
+  public int getPendingCount() {
+    return pending;
+  }
+
+  /**
+   * Delivers every export whose read back has completed, without blocking.
+   *
+   * @return The number of exports delivered.
+   */
+  public int poll() {
+    int delivered = 0;
+    while (pending > 0) {
+      final int status = waitForFirst(0);
+      if (status == GL_TIMEOUT_EXPIRED) {
+        break;
+      }
+      deliver(status == GL_WAIT_FAILED);
+      delivered++;
+    }
+    return delivered;
+  }
+
+  /**
+   * Blocks until every pending export has been delivered.
+   */
+  public void finish() {
+    while (pending > 0) {
+      int status;
+      do {
+        status = waitForFirst(FINISH_TIMEOUT);
+      } while (status == GL_TIMEOUT_EXPIRED);
+      deliver(status == GL_WAIT_FAILED);
+    }
+  }
+
+  private int waitForFirst(long timeout) {
+    // the flush ensures the fence reaches the GPU, otherwise it may never signal
+    return glClientWaitSync(fences[first], GL_SYNC_FLUSH_COMMANDS_BIT, timeout);
+  }
+
+  private void deliver(boolean failed) {
+    final int slot = first;
+    final Callback callback = callbacks[slot];
+    Bitmap result = results[slot];
+    glDeleteSync(fences[slot]);
+    fences[slot] = 0;
+    results[slot] = null;
+    callbacks[slot] = null;
+    first = (first + 1) % buffers.length;
+    pending--;
+
+    if (failed) {
+      callback.onError(error("Failed to wait for export fence."));
+      return;
+    }
+
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, buffers[slot]);
+    ByteBuffer buffer = (ByteBuffer) glMapBufferRange(GL_PIXEL_PACK_BUFFER, 0,
+        4 * width * height, GL_MAP_READ_BIT);
+    if (buffer == null) {
+      GLException exception =
+          error("Received null buffer for range [w=" + width + ", h=" + height + "]");
+      glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+      callback.onError(exception);
+      return;
+    }
+
+    if (result == null) {
+      result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    }
+    buffer.order(ByteOrder.nativeOrder());
+    result.copyPixelsFromBuffer(buffer);
+    glUnmapBuffer(GL_PIXEL_PACK_BUFFER);
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    callback.onExported(result);
+  }
+
+  /**
+   * Returns the pending GL error, or an exception without one, since failures to wait or map
+   * don't always set an error.
+   */
+  private static GLException error(String message) {
+    GLException exception = GLException.getGlError(message);
+    return exception != null ? exception : new GLException(message, GL_NO_ERROR);
+  }
+
+  /**
+   * Destroys all internal state of this exporter, dropping any pending exports without calling
+   * their callbacks.  It cannot be reused after this operation.
+   */
+  public void destroy() {
+    destroyed = true;
+    for (int i = 0; i < fences.length; i++) {
+      if (fences[i] != 0) {
+        glDeleteSync(fences[i]);
+        fences[i] = 0;
+      }
+      results[i] = null;
+      callbacks[i] = null;
+    }
+    pending = 0;
+    GLState.INSTANCE.bindFramebuffer(0);
+    glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
+    for (GLResources.Resource resource : bufferResources) {
+      GLResources.release(resource);
+    }
+    for (GLResources.Resource resource : resources) {
+      GLResources.release(resource);
+    }
+  }
+}
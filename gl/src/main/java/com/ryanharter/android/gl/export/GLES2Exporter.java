@@ -1,6 +1,7 @@
 package com.ryanharter.android.gl.export;
 
 import android.graphics.Bitmap;
+import com.ryanharter.android.gl.GLResources;
 import com.ryanharter.android.gl.GLState;
 import com.ryanharter.android.gl.exceptions.GLException;
 import java.nio.ByteBuffer;
@@ -17,11 +18,7 @@ import static android.opengl.GLES20.GL_TEXTURE_MIN_FILTER;
 import static android.opengl.GLES20.GL_TEXTURE_WRAP_S;
 import static android.opengl.GLES20.GL_TEXTURE_WRAP_T;
 import static android.opengl.GLES20.GL_UNSIGNED_BYTE;
-import static android.opengl.GLES20.glDeleteFramebuffers;
-import static android.opengl.GLES20.glDeleteTextures;
 import static android.opengl.GLES20.glFramebufferTexture2D;
-import static android.opengl.GLES20.glGenFramebuffers;
-import static android.opengl.GLES20.glGenTextures;
 import static android.opengl.GLES20.glReadPixels;
 import static android.opengl.GLES20.glTexImage2D;
 import static android.opengl.GLES20.glTexParameteri;
@@ -31,6 +28,7 @@ final class GLES2Exporter implements Exporter {
   private final int width;
   private final int height;
   private final int[] ids = new int[2];
+  private final GLResources.Resource[] resources = new GLResources.Resource[2];
   private ByteBuffer buffer;
   private boolean destroyed;
 
@@ -41,8 +39,10 @@ final class GLES2Exporter implements Exporter {
     buffer = ByteBuffer.allocateDirect(width * height * 4);
     buffer.order(ByteOrder.LITTLE_ENDIAN);
 
-    glGenFramebuffers(1, ids, 0);
-    glGenTextures(1, ids, 1);
+    resources[0] = GLResources.create(this, GLResources.FRAMEBUFFER);
+    resources[1] = GLResources.create(this, GLResources.TEXTURE);
+    ids[0] = resources[0].getName();
+    ids[1] = resources[1].getName();
 
     GLState.INSTANCE.bindTexture(0, GL_TEXTURE_2D, ids[1]);
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
@@ -97,7 +97,7 @@ final class GLES2Exporter implements Exporter {
     destroyed = true;
     buffer = null;
     GLState.INSTANCE.bindFramebuffer(0);
-    glDeleteFramebuffers(1, ids, 0);
-    glDeleteTextures(1, ids, 1);
+    GLResources.release(resources[0]);
+    GLResources.release(resources[1]);
   }
 }
@@ -3,6 +3,7 @@ package com.ryanharter.android.gl.export;
 import android.annotation.TargetApi;
 import android.graphics.Bitmap;
 import android.os.Build;
+import com.ryanharter.android.gl.GLResources;
 import com.ryanharter.android.gl.GLState;
 import com.ryanharter.android.gl.exceptions.GLException;
 import java.nio.ByteBuffer;
@@ -21,13 +22,7 @@ import static android.opengl.GLES20.GL_TEXTURE_WRAP_T;
 import static android.opengl.GLES20.GL_UNSIGNED_BYTE;
 import static android.opengl.GLES20.glBindBuffer;
 import static android.opengl.GLES20.glBufferData;
-import static android.opengl.GLES20.glDeleteBuffers;
-import static android.opengl.GLES20.glDeleteFramebuffers;
-import static android.opengl.GLES20.glDeleteTextures;
 import static android.opengl.GLES20.glFramebufferTexture2D;
-import static android.opengl.GLES20.glGenBuffers;
-import static android.opengl.GLES20.glGenFramebuffers;
-import static android.opengl.GLES20.glGenTextures;
 import static android.opengl.GLES20.glTexImage2D;
 import static android.opengl.GLES20.glTexParameteri;
 import static android.opengl.GLES30.GL_DYNAMIC_READ;
@@ -45,19 +40,23 @@ final class PBOExporter implements Exporter {
   private final int height;
 
   private int[] ids = new int[3];
+  private final GLResources.Resource[] resources = new GLResources.Resource[3];
   private boolean destroyed;
 
   public PBOExporter(int width, int height) {
     this.width = width;
     this.height = height;
 
-    glGenBuffers(1, ids, 0);
+    resources[0] = GLResources.create(this, GLResources.BUFFER);
+    ids[0] = resources[0].getName();
     glBindBuffer(GL_PIXEL_PACK_BUFFER, ids[0]);
     glBufferData(GL_PIXEL_PACK_BUFFER, 4 * width * height, null, GL_DYNAMIC_READ);
     glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
 
-    glGenFramebuffers(1, ids, 1);
-    glGenTextures(1, ids, 2);
+    resources[1] = GLResources.create(this, GLResources.FRAMEBUFFER);
+    resources[2] = GLResources.create(this, GLResources.TEXTURE);
+    ids[1] = resources[1].getName();
+    ids[2] = resources[2].getName();
 
     GLState.INSTANCE.bindTexture(0, GL_TEXTURE_2D, ids[2]);
     glTexParameteri(GL_TEXTURE_2D, GL_TEXTURE_MIN_FILTER, GL_LINEAR);
@@ -121,8 +120,8 @@ final class PBOExporter implements Exporter {
     destroyed = true;
     GLState.INSTANCE.bindFramebuffer(0);
     glBindBuffer(GL_PIXEL_PACK_BUFFER, 0);
-    glDeleteBuffers(1, ids, 0);
-    glDeleteFramebuffers(1, ids, 1);
-    glDeleteTextures(1, ids, 2);
+    for (GLResources.Resource resource : resources) {
+      GLResources.release(resource);
+    }
   }
 }
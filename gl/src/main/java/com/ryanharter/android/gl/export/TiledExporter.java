@@ -0,0 +1,215 @@
+package com.ryanharter.android.gl.export;
+
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
+import android.graphics.Rect;
+import com.ryanharter.android.gl.GLState;
+import com.ryanharter.android.gl.WritableTexture;
+import com.ryanharter.android.gl.exceptions.GLException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import static android.opengl.GLES20.GL_RGBA;
+import static android.opengl.GLES20.GL_UNSIGNED_BYTE;
+import static android.opengl.GLES20.glReadPixels;
+
+/**
+ * Exports images larger than the GPU can render at once, like print resolution exports.
+ *
+ * The image is split into tiles no larger than the maximum texture size, and the scene is
+ * rendered once per tile with a projection that maps the tile to the whole framebuffer.  Each
+ * tile is read back into the same small buffer, then either stitched into a destination bitmap
+ * or handed to a {@link TileSink}, which can stream it out, so the memory used doesn't depend
+ * on the size of the image.
+ *
+ * Like the other exporters, rows are in framebuffer order, with the bottom row of the scene
+ * first.
+ */
+public final class TiledExporter {
+
+  /**
+   * Renders the scene for a single tile.
+   */
+  public interface Scene {
+
+    /**
+     * Renders the whole scene into the bound framebuffer, which covers only the tile.  The
+     * framebuffer's previous contents are discarded, so the scene must clear or overwrite it,
+     * and must keep the viewport that's set.
+     *
+     * @param tileProjection A column-major matrix mapping normalized device coordinates of the
+     * whole image to those of the tile, to be applied after the scene's own projection.
+     * @param x The left of the tile in the image, in pixels.
+     * @param y The bottom of the tile in the image, in pixels.
+     * @param width The width of the tile within the image.
+     * @param height The height of the tile within the image.
+     */
+    void render(float[] tileProjection, int x, int y, int width, int height);
+  }
+
+  /**
+   * Receives the pixels of each tile as it's read back.
+   */
+  public interface TileSink {
+
+    /**
+     * Called with the RGBA pixels of the tile at <code>(x, y)</code>.  Only the first
+     * <code>width</code> pixels of the first <code>height</code> rows are part of the image,
+     * and the buffer is reused for the next tile once this returns.
+     *
+     * @param stride The distance between rows in <code>pixels</code>, in bytes.
+     */
+    void onTile(ByteBuffer pixels, int x, int y, int width, int height, int stride)
+        throws IOException;
+  }
+
+  /** The default largest tile size, which keeps the read back buffer to 4 MB. */
+  public static final int DEFAULT_TILE_SIZE = 1024;
+
+  private final int width;
+  private final int height;
+  private final int tileSize;
+  private final WritableTexture tile;
+  private final ByteBuffer buffer;
+  private final float[] tileProjection = new float[16];
+  private boolean destroyed;
+
+  public TiledExporter(int width, int height) {
+    this(width, height, DEFAULT_TILE_SIZE, false);
+  }
+
+  /**
+   * @param tileSize The largest width and height of a tile, which is reduced to the maximum
+   * texture size if it's larger.
+   * @param hasDepth Whether the scene needs a depth buffer.
+   */
+  public TiledExporter(int width, int height, int tileSize, boolean hasDepth) {
+    if (width < 1 || height < 1 || tileSize < 1) {
+      throw new IllegalArgumentException("Export and tile sizes must be positive.");
+    }
+    this.width = width;
+    this.height = height;
+    this.tileSize = Math.min(Math.min(tileSize, GLState.INSTANCE.getMaxTextureSize()),
+        Math.max(width, height));
+    tile = new WritableTexture(this.tileSize, this.tileSize, hasDepth);
+    buffer = ByteBuffer.allocateDirect(this.tileSize * this.tileSize * 4);
+    buffer.order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+  /**
+   * The number of tiles, and so the number of times the scene is rendered, per export.
+   */
+  public int getTileCount() {
+    return tiles(width) * tiles(height);
+  }
+
+  private int tiles(int size) {
+    return (size + tileSize - 1) / tileSize;
+  }
+
+  /**
+   * Renders <code>scene</code> tile by tile into a new Bitmap.
+   */
+  public Bitmap export(Scene scene) throws GLException {
+    Bitmap result = Bitmap.createBitmap(width, height, Bitmap.Config.ARGB_8888);
+    export(scene, result);
+    return result;
+  }
+
+  /**
+   * Renders <code>scene</code> tile by tile, stitching the tiles into <code>result</code>.
+   */
+  public void export(Scene scene, Bitmap result) throws GLException {
+    if (result.getWidth() != width || result.getHeight() != height) {
+      throw new IllegalArgumentException("Result bitmap must match exporter dimensions.");
+    }
+    if (result.getConfig() != Bitmap.Config.ARGB_8888) {
+      throw new IllegalArgumentException("Result bitmap must have ARGB_8888 config.");
+    }
+
+    final Bitmap tileBitmap = Bitmap.createBitmap(tileSize, tileSize, Bitmap.Config.ARGB_8888);
+    final Canvas canvas = new Canvas(result);
+    final Paint paint = new Paint();
+    // tiles replace the destination, rather than blending translucent pixels over it
+    paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.SRC));
+    final Rect src = new Rect();
+    final Rect dst = new Rect();
+    try {
+      export(scene, (pixels, x, y, w, h, stride) -> {
+        tileBitmap.copyPixelsFromBuffer(pixels);
+        src.set(0, 0, w, h);
+        dst.set(x, y, x + w, y + h);
+        canvas.drawBitmap(tileBitmap, src, dst, paint);
+      });
+    } catch (IOException e) {
+      // drawing into a bitmap doesn't do any IO
+      throw new IllegalStateException(e);
+    } finally {
+      tileBitmap.recycle();
+    }
+  }
+
+  /**
+   * Renders <code>scene</code> tile by tile, passing each tile to <code>sink</code>, from the
+   * bottom row of tiles up, and left to right within a row.
+   */
+  public void export(Scene scene, TileSink sink) throws GLException, IOException {
+    if (destroyed) {
+      throw new IllegalStateException("Exporter has already been destroyed.");
+    }
+
+    for (int y = 0; y < height; y += tileSize) {
+      for (int x = 0; x < width; x += tileSize) {
+        final int w = Math.min(tileSize, width - x);
+        final int h = Math.min(tileSize, height - y);
+        tileProjection(tileProjection, width, height, x, y, tileSize, tileSize);
+
+        tile.bindFramebuffer(WritableTexture.DISCARD_ALL);
+        scene.render(tileProjection, x, y, w, h);
+
+        // the whole tile is read so that rows keep the same stride
+        buffer.rewind();
+        glReadPixels(0, 0, tileSize, tileSize, GL_RGBA, GL_UNSIGNED_BYTE, buffer);
+        tile.unbindFramebuffer(true, WritableTexture.DISCARD_ALL);
+
+        GLException exception = GLException.getGlError("Failed to read tile at " + x + ", " + y);
+        if (exception != null) {
+          throw exception;
+        }
+
+        buffer.rewind();
+        sink.onTile(buffer, x, y, w, h, tileSize * 4);
+      }
+    }
+  }
+
+  /**
+   * Sets <code>m</code> to the matrix that maps normalized device coordinates of an image of
+   * <code>width</code> by <code>height</code> to those of the <code>tileWidth</code> by
+   * <code>tileHeight</code> tile whose bottom left is at <code>(x, y)</code>.
+   */
+  static void tileProjection(float[] m, int width, int height, int x, int y, int tileWidth,
+      int tileHeight) {
+    for (int i = 0; i < 16; i++) {
+      m[i] = 0;
+    }
+    m[0] = (float) width / tileWidth;
+    m[5] = (float) height / tileHeight;
+    m[10] = 1;
+    m[12] = (float) (width - 2 * x - tileWidth) / tileWidth;
+    m[13] = (float) (height - 2 * y - tileHeight) / tileHeight;
+    m[15] = 1;
+  }
+
+  /**
+   * Destroys all internal state of this exporter.  It cannot be reused after this operation.
+   */
+  public void destroy() {
+    destroyed = true;
+    tile.destroy();
+  }
+}
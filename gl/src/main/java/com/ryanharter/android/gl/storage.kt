@@ -0,0 +1,124 @@
+@file:JvmName("TextureStorage")
+
+package com.ryanharter.android.gl
+
+import android.opengl.GLES20.GL_FLOAT
+import android.opengl.GLES20.GL_RENDERBUFFER
+import android.opengl.GLES20.GL_RGB
+import android.opengl.GLES20.GL_RGBA
+import android.opengl.GLES20.GL_UNSIGNED_BYTE
+import android.opengl.GLES20.GL_UNSIGNED_INT
+import android.opengl.GLES20.glGetIntegerv
+import android.opengl.GLES20.glRenderbufferStorage
+import android.opengl.GLES20.glTexImage2D
+import android.opengl.GLES30.*
+
+internal fun format(internalFormat: Int) = when (internalFormat) {
+  GL_R8, GL_R8_SNORM, GL_R16F, GL_R32F -> GL_RED
+  GL_RG8, GL_RG8_SNORM, GL_RG16F, GL_RG32F -> GL_RG
+  GL_RGB8, GL_SRGB8, GL_RGB8_SNORM, GL_RGB16F, GL_RGB32F -> GL_RGB
+  GL_RGBA8, GL_SRGB8_ALPHA8, GL_RGBA8_SNORM, GL_RGBA16F, GL_RGBA32F -> GL_RGBA
+  GL_R32UI -> GL_RED_INTEGER
+  GL_RGBA32UI -> GL_RGBA_INTEGER
+  else -> internalFormat
+}
+
+internal fun type(internalFormat: Int) = when (internalFormat) {
+  GL_R16F, GL_RG16F, GL_RGB16F, GL_RGBA16F -> GL_HALF_FLOAT
+  GL_R32F, GL_RG32F, GL_RGB32F, GL_RGBA32F -> GL_FLOAT
+  GL_R32UI, GL_RGBA32UI -> GL_UNSIGNED_INT
+  else -> GL_UNSIGNED_BYTE
+}
+
+/**
+ * Whether [format] is the format of an integer texture, which is sampled with `texelFetch` on an
+ * integer sampler rather than filtered.
+ */
+internal fun isIntegerFormat(format: Int) = when (format) {
+  GL_RED_INTEGER, GL_RG_INTEGER, GL_RGB_INTEGER, GL_RGBA_INTEGER -> true
+  else -> false
+}
+
+/**
+ * Returns the sized internal format equivalent to the unsized combination of
+ * [internalFormat], [format] and [type], or 0 if there is none and the texture has to be
+ * allocated with `glTexImage2D`.
+ */
+internal fun sizedFormat(internalFormat: Int, format: Int, type: Int) = when {
+  internalFormat == GL_RGBA && format == GL_RGBA && type == GL_UNSIGNED_BYTE -> GL_RGBA8
+  internalFormat == GL_RGB && format == GL_RGB && type == GL_UNSIGNED_BYTE -> GL_RGB8
+  format(internalFormat) != internalFormat -> internalFormat
+  else -> 0
+}
+
+/**
+ * Returns the number of levels in a complete mipmap chain for a texture of the given size.
+ */
+fun mipLevelCount(width: Int, height: Int) =
+  32 - Integer.numberOfLeadingZeros(Math.max(width, height))
+
+/**
+ * Allocates storage for the texture bound to [target].
+ *
+ * On OpenGL ES 3.0 this allocates immutable storage for all [levels] at once using
+ * `glTexStorage2D`, which saves the driver from revalidating or reallocating the texture
+ * when its contents change or mipmaps are generated. Contents must then be specified with
+ * `glTexSubImage2D`.
+ *
+ * On OpenGL ES 2.0, or for formats that have no sized equivalent, only the base level is
+ * allocated with `glTexImage2D`.
+ *
+ * @return true if immutable storage was allocated.
+ */
+fun texStorage2D(target: Int, levels: Int, internalFormat: Int, width: Int, height: Int,
+  format: Int, type: Int): Boolean {
+  val sized = sizedFormat(internalFormat, format, type)
+  if (sized != 0 && GLState.getGlVersion() == GLState.GLVersion.GLES_30) {
+    glTexStorage2D(target, levels, sized, width, height)
+    return true
+  }
+  glTexImage2D(target, 0, internalFormat, width, height, 0, format, type, null)
+  return false
+}
+
+/** Render targets are single sampled. */
+internal const val MULTISAMPLE_NONE = 0
+/** Multisampling is resolved on-tile with `GL_EXT_multisampled_render_to_texture`. */
+internal const val MULTISAMPLE_IMPLICIT = 1
+/** Rendering goes to multisampled renderbuffers, which are resolved with `glBlitFramebuffer`. */
+internal const val MULTISAMPLE_RESOLVE = 2
+
+private const val GL_MAX_SAMPLES_EXT = 0x9135
+
+/**
+ * Returns how render targets with [samples] samples per pixel can be multisampled on the current
+ * context, and writes the number of samples that will actually be used, clamped to what the
+ * implementation supports, to `out[0]`.
+ */
+internal fun chooseMultisampleMode(samples: Int, out: IntArray): Int {
+  val mode = when {
+    samples <= 1 -> MULTISAMPLE_NONE
+    GLState.hasExtension("GL_EXT_multisampled_render_to_texture") -> MULTISAMPLE_IMPLICIT
+    GLState.getGlVersion() == GLState.GLVersion.GLES_30 -> MULTISAMPLE_RESOLVE
+    else -> MULTISAMPLE_NONE
+  }
+  if (mode == MULTISAMPLE_NONE) {
+    out[0] = 1
+    return mode
+  }
+  glGetIntegerv(if (mode == MULTISAMPLE_IMPLICIT) GL_MAX_SAMPLES_EXT else GL_MAX_SAMPLES, out, 0)
+  out[0] = minOf(samples, out[0])
+  return if (out[0] > 1) mode else MULTISAMPLE_NONE
+}
+
+/**
+ * Allocates storage for the bound renderbuffer, multisampled according to [mode].
+ */
+internal fun renderbufferStorage(mode: Int, samples: Int, internalFormat: Int, width: Int,
+  height: Int) = when (mode) {
+  MULTISAMPLE_IMPLICIT -> GLES2Fix.glRenderbufferStorageMultisampleEXT(GL_RENDERBUFFER, samples,
+    internalFormat, width, height)
+  MULTISAMPLE_RESOLVE -> glRenderbufferStorageMultisample(GL_RENDERBUFFER, samples,
+    internalFormat, width, height)
+  else -> glRenderbufferStorage(GL_RENDERBUFFER, internalFormat, width, height)
+}
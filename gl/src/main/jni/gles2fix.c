@@ -1,9 +1,79 @@
 #include <jni.h>
+#include <EGL/egl.h>
 #include <GLES2/gl2.h>
+#include <GLES2/gl2ext.h>
+
+#define MAX_DISCARD_ATTACHMENTS 16
+
+static PFNGLDISCARDFRAMEBUFFEREXTPROC discardFramebufferEXT = NULL;
+static PFNGLFRAMEBUFFERTEXTURE2DMULTISAMPLEEXTPROC framebufferTexture2DMultisampleEXT = NULL;
+static PFNGLRENDERBUFFERSTORAGEMULTISAMPLEEXTPROC renderbufferStorageMultisampleEXT = NULL;
 
 JNIEXPORT void JNICALL
 Java_com_ryanharter_android_gl_GLES2Fix_glReadPixelsPBO(JNIEnv *env, jobject instance,
                                                         jint x, jint y, jint width, jint height,
                                                         GLenum format, GLenum type, jint offset) {
     glReadPixels(x, y, width, height, format, type, (void *) offset);
-}
\ No newline at end of file
+}
+JNIEXPORT void JNICALL
+Java_com_ryanharter_android_gl_GLES2Fix_glTexSubImage2DPBO(JNIEnv *env, jobject instance,
+                                                           jint target, jint level,
+                                                           jint xoffset, jint yoffset,
+                                                           jint width, jint height,
+                                                           GLenum format, GLenum type, jint offset) {
+    glTexSubImage2D(target, level, xoffset, yoffset, width, height, format, type, (void *) offset);
+}
+JNIEXPORT void JNICALL
+Java_com_ryanharter_android_gl_GLES2Fix_glDiscardFramebufferEXT(JNIEnv *env, jobject instance,
+                                                                jint target, jint count,
+                                                                jintArray attachments_,
+                                                                jint offset) {
+    if (discardFramebufferEXT == NULL) {
+        discardFramebufferEXT =
+                (PFNGLDISCARDFRAMEBUFFEREXTPROC) eglGetProcAddress("glDiscardFramebufferEXT");
+        if (discardFramebufferEXT == NULL) {
+            return;
+        }
+    }
+    if (count > MAX_DISCARD_ATTACHMENTS) {
+        count = MAX_DISCARD_ATTACHMENTS;
+    }
+    GLenum attachments[MAX_DISCARD_ATTACHMENTS];
+    (*env)->GetIntArrayRegion(env, attachments_, offset, count, (jint *) attachments);
+    discardFramebufferEXT(target, count, attachments);
+}
+JNIEXPORT void JNICALL
+Java_com_ryanharter_android_gl_GLES2Fix_glFramebufferTexture2DMultisampleEXT(JNIEnv *env,
+                                                                            jobject instance,
+                                                                            jint target,
+                                                                            jint attachment,
+                                                                            jint textarget,
+                                                                            jint texture,
+                                                                            jint level,
+                                                                            jint samples) {
+    if (framebufferTexture2DMultisampleEXT == NULL) {
+        framebufferTexture2DMultisampleEXT = (PFNGLFRAMEBUFFERTEXTURE2DMULTISAMPLEEXTPROC)
+                eglGetProcAddress("glFramebufferTexture2DMultisampleEXT");
+        if (framebufferTexture2DMultisampleEXT == NULL) {
+            return;
+        }
+    }
+    framebufferTexture2DMultisampleEXT(target, attachment, textarget, texture, level, samples);
+}
+JNIEXPORT void JNICALL
+Java_com_ryanharter_android_gl_GLES2Fix_glRenderbufferStorageMultisampleEXT(JNIEnv *env,
+                                                                           jobject instance,
+                                                                           jint target,
+                                                                           jint samples,
+                                                                           jint internalformat,
+                                                                           jint width,
+                                                                           jint height) {
+    if (renderbufferStorageMultisampleEXT == NULL) {
+        renderbufferStorageMultisampleEXT = (PFNGLRENDERBUFFERSTORAGEMULTISAMPLEEXTPROC)
+                eglGetProcAddress("glRenderbufferStorageMultisampleEXT");
+        if (renderbufferStorageMultisampleEXT == NULL) {
+            return;
+        }
+    }
+    renderbufferStorageMultisampleEXT(target, samples, internalformat, width, height);
+}
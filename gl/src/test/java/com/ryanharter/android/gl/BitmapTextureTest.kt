@@ -0,0 +1,25 @@
+package com.ryanharter.android.gl
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+@RunWith(JUnit4::class)
+class BitmapTextureTest {
+
+  @Test fun givenOpaqueColor_onPremultiply_swapsToRgba() {
+    assertThat(BitmapTexture.premultipliedRgba(0xff112233.toInt()))
+      .isEqualTo(0xff332211.toInt())
+  }
+
+  @Test fun givenTranslucentColor_onPremultiply_scalesByAlpha() {
+    // 0xff * 0x80 / 0xff, 0x80 * 0x80 / 0xff rounded, 0
+    assertThat(BitmapTexture.premultipliedRgba(0x80ff8000.toInt()))
+      .isEqualTo(0x80004080.toInt())
+  }
+
+  @Test fun givenTransparentColor_onPremultiply_isZero() {
+    assertThat(BitmapTexture.premultipliedRgba(0x00ffffff)).isEqualTo(0)
+  }
+}
@@ -0,0 +1,39 @@
+package com.ryanharter.android.gl
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+@RunWith(JUnit4::class)
+class ConvolutionFilterTest {
+
+  @Test fun givenSmallKernel_onSeparableIsCheaper_prefersDirectPass() {
+    // a 3x3 sharpen has two terms, which read more than its 9 weights
+    assertThat(ConvolutionFilter.separableIsCheaper(2, 3, 3)).isFalse()
+  }
+
+  @Test fun givenLowRankLargeKernel_onSeparableIsCheaper_prefersSeparablePasses() {
+    assertThat(ConvolutionFilter.separableIsCheaper(1, 7, 7)).isTrue()
+    assertThat(ConvolutionFilter.separableIsCheaper(2, 7, 7)).isTrue()
+    assertThat(ConvolutionFilter.separableIsCheaper(7, 7, 7)).isFalse()
+  }
+
+  @Test fun givenLargeKernel_onChooseTerms_usesSeparablePassesWhenDirectDoesNotFit() {
+    // a full rank 9x9 kernel reads fewer texels directly, but needs 22 vectors for it
+    assertThat(ConvolutionFilter.directUniformVectors(9, 9)).isEqualTo(22)
+    assertThat(ConvolutionFilter.chooseTerms(5, 9, 9, 16)).isEqualTo(5)
+    assertThat(ConvolutionFilter.chooseTerms(5, 9, 9, 64)).isEqualTo(0)
+  }
+
+  @Test fun givenKernelThatFitsNoPass_onChooseTerms_keepsTheTermsThatFit() {
+    assertThat(ConvolutionFilter.columnUniformVectors(9, 8)).isEqualTo(20)
+    assertThat(ConvolutionFilter.chooseTerms(8, 9, 9, 16)).isEqualTo(6)
+    assertThat(ConvolutionFilter.chooseTerms(9, 9, 9, 16)).isEqualTo(6)
+  }
+
+  @Test fun givenSmallKernel_onChooseTerms_prefersCheaperPass() {
+    assertThat(ConvolutionFilter.chooseTerms(2, 3, 3, 16)).isEqualTo(0)
+    assertThat(ConvolutionFilter.chooseTerms(1, 7, 7, 16)).isEqualTo(1)
+  }
+}
@@ -0,0 +1,50 @@
+package com.ryanharter.android.gl
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+import java.util.Random
+
+@RunWith(JUnit4::class)
+class ConvolutionKernelTest {
+
+  @Test fun givenOuterProduct_onSeparate_returnsOneTerm() {
+    val kernel = ConvolutionKernel.create(3, 3,
+        1f, 2f, 1f,
+        2f, 4f, 2f,
+        1f, 2f, 1f)
+
+    assertThat(kernel.separate(1e-4f)).hasSize(1)
+  }
+
+  @Test fun givenSharpen_onSeparate_returnsTwoTerms() {
+    val kernel = ConvolutionKernel.create(3, 3,
+        0f, -1f, 0f,
+        -1f, 5f, -1f,
+        0f, -1f, 0f)
+
+    assertThat(kernel.separate(1e-4f)).hasSize(2)
+  }
+
+  @Test fun givenAnyKernel_onSeparate_reconstructsWithinTolerance() {
+    val random = Random(7)
+    val kernel = ConvolutionKernel.create(7, 5, *FloatArray(35) { random.nextFloat() - 0.5f })
+
+    val terms = kernel.separate(1e-4f)
+
+    for (y in 0 until 5) {
+      for (x in 0 until 7) {
+        val sum = terms.map { it.row(x) * it.column(y) }.sum()
+        assertThat(sum).isWithin(1e-4f).of(kernel.weight(x, y))
+      }
+    }
+  }
+
+  @Test fun givenLooserTolerance_onSeparate_returnsFewerTerms() {
+    val random = Random(7)
+    val kernel = ConvolutionKernel.create(7, 7, *FloatArray(49) { random.nextFloat() - 0.5f })
+
+    assertThat(kernel.separate(0.3f).size).isLessThan(kernel.separate(1e-4f).size)
+  }
+}
@@ -0,0 +1,73 @@
+package com.ryanharter.android.gl
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+@RunWith(JUnit4::class)
+class DirtyRegionTest {
+
+  @Test fun givenOverlappingRects_onAdd_mergesIntoOne() {
+    val region = DirtyRegion(8, 0)
+    region.add(0, 0, 10, 10)
+    region.add(5, 5, 15, 15)
+
+    assertThat(region.size()).isEqualTo(1)
+    assertThat(region.bounds()).isEqualTo(intArrayOf(0, 0, 15, 15))
+  }
+
+  @Test fun givenOverlappingRects_withNegativeThreshold_onAdd_stillMerges() {
+    val region = DirtyRegion(8, -1000)
+    region.add(0, 0, 10, 10)
+    region.add(9, 9, 20, 20)
+
+    assertThat(region.size()).isEqualTo(1)
+    assertThat(region.bounds()).isEqualTo(intArrayOf(0, 0, 20, 20))
+  }
+
+  @Test fun givenDistantRects_onAdd_keepsThemSeparate() {
+    val region = DirtyRegion(8, 100)
+    region.add(0, 0, 10, 10)
+    region.add(100, 100, 110, 110)
+
+    assertThat(region.size()).isEqualTo(2)
+  }
+
+  @Test fun givenNearbyRects_onAdd_mergesWhenWasteIsBelowThreshold() {
+    val region = DirtyRegion(8, 100)
+    region.add(0, 0, 10, 10)
+    region.add(12, 0, 20, 10)
+
+    assertThat(region.size()).isEqualTo(1)
+    assertThat(region.bounds()).isEqualTo(intArrayOf(0, 0, 20, 10))
+  }
+
+  @Test fun givenTooManyRects_onAdd_mergesCheapestPair() {
+    val region = DirtyRegion(2, 0)
+    region.add(0, 0, 10, 10)
+    region.add(1000, 1000, 1010, 1010)
+    region.add(20, 0, 30, 10)
+
+    assertThat(region.size()).isEqualTo(2)
+    assertThat(region.left(0) == 0 || region.left(1) == 0).isTrue()
+    assertThat(region.right(0) == 30 || region.right(1) == 30).isTrue()
+  }
+
+  @Test fun givenEmptyRect_onAdd_isIgnored() {
+    val region = DirtyRegion()
+    region.add(10, 10, 10, 20)
+
+    assertThat(region.isEmpty).isTrue()
+  }
+
+  @Test fun givenRects_onExpand_growsAndClips() {
+    val region = DirtyRegion()
+    region.add(2, 2, 10, 10)
+    region.expand(4, 12, 12)
+
+    assertThat(region.bounds()).isEqualTo(intArrayOf(0, 0, 12, 12))
+  }
+
+  private fun DirtyRegion.bounds() = IntArray(4).also { getBounds(it) }
+}
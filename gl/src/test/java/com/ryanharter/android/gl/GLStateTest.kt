@@ -16,4 +16,14 @@ class GLStateTest {
     assertThat(called).isTrue()
     GLState.removeResetListener(listener)
   }
+
+  @Test fun givenVersionString_onParse_returnsMajorAndMinor() {
+    assertThat(parseGlVersion("OpenGL ES 3.1 v1.r12p0-04rel0")).isEqualTo(31)
+    assertThat(parseGlVersion("OpenGL ES 2.0 build 1.13@2969")).isEqualTo(20)
+  }
+
+  @Test fun givenDesktopOrMissingVersion_onParse_returnsZero() {
+    assertThat(parseGlVersion("4.6.0 NVIDIA 440.82")).isEqualTo(0)
+    assertThat(parseGlVersion(null)).isEqualTo(0)
+  }
 }
\ No newline at end of file
@@ -0,0 +1,72 @@
+package com.ryanharter.android.gl
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+@RunWith(JUnit4::class)
+class GaussianKernelTest {
+
+  @Test fun givenSigma_onCreate_weightsSumToOne() {
+    val kernel = GaussianKernel.create(4f)
+
+    var sum = kernel.weight(0)
+    for (i in 1..kernel.tapCount()) {
+      sum += 2 * kernel.weight(i)
+    }
+
+    assertThat(sum).isWithin(1e-5f).of(1f)
+  }
+
+  @Test fun givenSigma_onCreate_mergesPairsOfTexels() {
+    val kernel = GaussianKernel.create(4f)
+
+    // 12 texels on each side, read two at a time
+    assertThat(kernel.radius()).isEqualTo(12)
+    assertThat(kernel.tapCount()).isEqualTo(6)
+    for (i in 1..kernel.tapCount()) {
+      assertThat(kernel.offset(i)).isAtLeast(2f * i - 1)
+      assertThat(kernel.offset(i)).isAtMost(2f * i)
+    }
+  }
+
+  @Test fun givenZeroSigma_onCreate_copies() {
+    val kernel = GaussianKernel.create(0f)
+
+    assertThat(kernel.tapCount()).isEqualTo(0)
+    assertThat(kernel.weight(0)).isEqualTo(1f)
+  }
+
+  @Test fun givenTinySigma_onCreate_hasFiniteOffsets() {
+    // the outer weight underflows to 0
+    val kernel = GaussianKernel.create(0.05f)
+
+    for (i in 1..kernel.tapCount()) {
+      assertThat(kernel.offset(i).isNaN()).isFalse()
+    }
+    assertThat(kernel.weight(0)).isWithin(1e-5f).of(1f)
+  }
+
+  @Test fun givenTapLimit_onMaxSigma_createsKernelWithinLimit() {
+    for (taps in 0..100) {
+      assertThat(GaussianKernel.create(GaussianKernel.maxSigma(taps)).tapCount()).isAtMost(taps)
+    }
+  }
+
+  @Test fun givenMinimumUniformVectors_onMaxTaps_fitsWeightsAndOffsets() {
+    // OpenGL ES 2.0 only guarantees 16 fragment uniform vectors
+    val taps = GaussianBlurProgram.maxTaps(16, 128)
+
+    assertThat(2 * (taps + 1) + 1).isAtMost(16)
+    assertThat(taps).isGreaterThan(0)
+  }
+
+  @Test fun givenTapsBeyondVaryings_onFragmentShader_computesRemainingCoordinates() {
+    val source = GaussianBlurProgram.fragmentShader(4, 2)
+
+    assertThat(source).contains("v_taps[1].zw")
+    assertThat(source).doesNotContain("v_taps[2]")
+    assertThat(source).contains("texelOffset * offsets[4]")
+  }
+}
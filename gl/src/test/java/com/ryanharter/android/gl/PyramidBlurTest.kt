@@ -0,0 +1,32 @@
+package com.ryanharter.android.gl
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+@RunWith(JUnit4::class)
+class PyramidBlurTest {
+
+  @Test fun givenLargerRadius_onLevels_usesMoreLevels() {
+    val small = PyramidBlur.levels(4f, 4096, 4096)
+    val large = PyramidBlur.levels(200f, 4096, 4096)
+
+    assertThat(small).isEqualTo(2)
+    assertThat(large).isGreaterThan(small)
+  }
+
+  @Test fun givenSmallImage_onLevels_keepsSmallestLevelAtLeastTwoPixels() {
+    val levels = PyramidBlur.levels(10_000f, 64, 4096)
+
+    assertThat(64 shr levels).isAtLeast(2)
+    assertThat(levels).isLessThan(PyramidBlur.MAX_LEVELS)
+  }
+
+  @Test fun givenRadiusWithinReach_onOffset_isAtMostTwo() {
+    val levels = PyramidBlur.levels(100f, 4096, 4096)
+
+    assertThat(PyramidBlur.offset(100f, levels)).isAtMost(2f)
+    assertThat(PyramidBlur.offset(100f, levels)).isGreaterThan(0f)
+  }
+}
@@ -0,0 +1,104 @@
+package com.ryanharter.android.gl
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+@RunWith(JUnit4::class)
+class RenderGraphTest {
+
+  private val rgba = 0x1908
+
+  @Test fun givenPassWithUnusedOutput_onCompile_isCulled() {
+    val resources = listOf(transient(), transient(), output())
+    val passes = listOf(
+      PassNode("unused", intArrayOf(), 0, true),
+      PassNode("used", intArrayOf(), 1, true),
+      PassNode("final", intArrayOf(1), 2, true)
+    )
+
+    val schedule = compileRenderGraph(passes, resources)
+
+    assertThat(schedule.passes.toList()).containsExactly(1, 2).inOrder()
+    assertThat(schedule.slots[0]).isEqualTo(-1)
+  }
+
+  @Test fun givenOverwritingPass_onCompile_cullsEarlierWrites() {
+    val resources = listOf(output())
+    val passes = listOf(
+      PassNode("first", intArrayOf(), 0, true),
+      PassNode("second", intArrayOf(), 0, true)
+    )
+
+    val schedule = compileRenderGraph(passes, resources)
+
+    assertThat(schedule.passes.toList()).containsExactly(1)
+  }
+
+  @Test fun givenBlendingPass_onCompile_keepsEarlierWrites() {
+    val resources = listOf(output())
+    val passes = listOf(
+      PassNode("first", intArrayOf(), 0, true),
+      PassNode("second", intArrayOf(), 0, false)
+    )
+
+    val schedule = compileRenderGraph(passes, resources)
+
+    assertThat(schedule.passes.toList()).containsExactly(0, 1).inOrder()
+  }
+
+  @Test fun givenDisjointLifetimes_onCompile_aliasesTargets() {
+    // a -> b -> c -> output, a is dead by the time c is written
+    val resources = listOf(transient(), transient(), transient(), output())
+    val passes = listOf(
+      PassNode("a", intArrayOf(), 0, true),
+      PassNode("b", intArrayOf(0), 1, true),
+      PassNode("c", intArrayOf(1), 2, true),
+      PassNode("out", intArrayOf(2), 3, true)
+    )
+
+    val schedule = compileRenderGraph(passes, resources)
+
+    assertThat(schedule.slotCount).isEqualTo(2)
+    assertThat(schedule.slots[2]).isEqualTo(schedule.slots[0])
+    assertThat(schedule.slots[1]).isNotEqualTo(schedule.slots[0])
+    assertThat(schedule.slots[3]).isEqualTo(-1)
+  }
+
+  @Test fun givenDifferentSizes_onCompile_doesNotAlias() {
+    val resources = listOf(transient(), transient(), transient(64, 64), output())
+    val passes = listOf(
+      PassNode("a", intArrayOf(), 0, true),
+      PassNode("b", intArrayOf(0), 1, true),
+      PassNode("c", intArrayOf(1), 2, true),
+      PassNode("out", intArrayOf(2), 3, true)
+    )
+
+    val schedule = compileRenderGraph(passes, resources)
+
+    assertThat(schedule.slotCount).isEqualTo(3)
+  }
+
+  @Test fun givenTransientOutput_onCompile_isNotAliasedByLaterTargets() {
+    // a is an output, so c can't take its texture even though nothing reads a after b
+    val resources = listOf(transient().apply { output = true }, transient(), transient(), output())
+    val passes = listOf(
+      PassNode("a", intArrayOf(), 0, true),
+      PassNode("b", intArrayOf(0), 1, true),
+      PassNode("c", intArrayOf(1), 2, true),
+      PassNode("out", intArrayOf(2), 3, true)
+    )
+
+    val schedule = compileRenderGraph(passes, resources)
+
+    assertThat(schedule.slotCount).isEqualTo(3)
+    assertThat(schedule.slots[2]).isNotEqualTo(schedule.slots[0])
+    assertThat(schedule.slots[1]).isNotEqualTo(schedule.slots[0])
+  }
+
+  private fun transient(width: Int = 128, height: Int = 128) =
+    ResourceNode(width, height, rgba, external = false)
+
+  private fun output() = ResourceNode(0, 0, 0, external = true).apply { output = true }
+}
@@ -0,0 +1,27 @@
+package com.ryanharter.android.gl
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+@RunWith(JUnit4::class)
+class SummedAreaTableTest {
+
+  @Test fun givenZeroSigma_onBoxRadius_isZero() {
+    assertThat(SummedAreaTable.boxRadius(0f, 3)).isEqualTo(0)
+  }
+
+  @Test fun givenOneIteration_onBoxRadius_matchesGaussianVariance() {
+    // a box of width sqrt(12 * 10^2 + 1) ~= 34.66 has the variance of sigma 10
+    assertThat(SummedAreaTable.boxRadius(10f, 1)).isEqualTo(17)
+  }
+
+  @Test fun givenMoreIterations_onBoxRadius_usesSmallerBoxes() {
+    val one = SummedAreaTable.boxRadius(20f, 1)
+    val three = SummedAreaTable.boxRadius(20f, 3)
+
+    assertThat(three).isLessThan(one)
+    assertThat(three).isGreaterThan(0)
+  }
+}
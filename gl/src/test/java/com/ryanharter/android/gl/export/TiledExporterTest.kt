@@ -0,0 +1,38 @@
+package com.ryanharter.android.gl.export
+
+import com.google.common.truth.Truth.assertThat
+import org.junit.Test
+import org.junit.runner.RunWith
+import org.junit.runners.JUnit4
+
+@RunWith(JUnit4::class)
+class TiledExporterTest {
+
+  @Test fun givenTile_onTileProjection_mapsTileCornersToFramebufferCorners() {
+    val m = FloatArray(16)
+    TiledExporter.tileProjection(m, 12000, 8000, 2048, 1024, 1024, 1024)
+
+    // pixel (2048, 1024) of the image is at the bottom left of the tile
+    assertThat(transformX(m, 2048, 12000)).isWithin(1e-4f).of(-1f)
+    assertThat(transformY(m, 1024, 8000)).isWithin(1e-4f).of(-1f)
+    assertThat(transformX(m, 3072, 12000)).isWithin(1e-4f).of(1f)
+    assertThat(transformY(m, 2048, 8000)).isWithin(1e-4f).of(1f)
+  }
+
+  @Test fun givenSingleTile_onTileProjection_isIdentity() {
+    val m = FloatArray(16)
+    TiledExporter.tileProjection(m, 512, 256, 0, 0, 512, 256)
+
+    assertThat(m).isEqualTo(floatArrayOf(
+        1f, 0f, 0f, 0f,
+        0f, 1f, 0f, 0f,
+        0f, 0f, 1f, 0f,
+        0f, 0f, 0f, 1f))
+  }
+
+  private fun transformX(m: FloatArray, pixel: Int, size: Int) =
+      m[0] * (2f * pixel / size - 1f) + m[12]
+
+  private fun transformY(m: FloatArray, pixel: Int, size: Int) =
+      m[5] * (2f * pixel / size - 1f) + m[13]
+}